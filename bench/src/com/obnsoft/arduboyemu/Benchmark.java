@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.util.Locale;
+
+/**
+ * Minimal benchmark harness: warms up, then measures throughput in several
+ * timed iterations and reports the mean with the spread.
+ * Each benchmark performs a batch of operations per call, so the cost of
+ * reading the clock is amortized.
+ */
+public abstract class Benchmark {
+
+    public static final int DEFAULT_WARMUP_MILLIS = 2000;
+    public static final int DEFAULT_ITERATIONS = 5;
+    public static final int DEFAULT_ITERATION_MILLIS = 1000;
+
+    private static final long BATCH_NANOS = 10 * 1000 * 1000L;
+
+    private static volatile long sSink; // keeps results alive against dead code elimination
+
+    public static class Result {
+
+        public String   name;
+        public String   unit;
+        public double   mean;   // operations per second
+        public double   error;  // standard deviation
+        public double   min;
+        public double   max;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %14.1f +- %10.1f %s/s  (min %.1f, max %.1f)",
+                    name, mean, error, unit, min, max);
+        }
+    }
+
+    private String  mName;
+    private String  mUnit;
+
+    protected Benchmark(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public String getName() {
+        return mName;
+    }
+
+    protected void setUp() throws Exception {
+        // do nothing by default
+    }
+
+    /**
+     * Perform the operation <code>ops</code> times.
+     */
+    protected abstract void run(int ops) throws Exception;
+
+    protected void tearDown() throws Exception {
+        // do nothing by default
+    }
+
+    protected static void consume(long value) {
+        sSink += value;
+    }
+
+    public Result measure(int warmupMillis, int iterations, int iterationMillis)
+            throws Exception {
+        setUp();
+        try {
+            int batchOps = calibrate();
+            runFor(batchOps, warmupMillis * 1000000L);
+            double[] samples = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                samples[i] = runFor(batchOps, iterationMillis * 1000000L);
+            }
+            return summarize(samples);
+        } finally {
+            tearDown();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Find the number of operations which takes about BATCH_NANOS.
+     */
+    private int calibrate() throws Exception {
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= BATCH_NANOS || ops >= Integer.MAX_VALUE / 2) {
+                return ops;
+            }
+            ops *= 2;
+        }
+    }
+
+    /**
+     * @return operations per second
+     */
+    private double runFor(int batchOps, long nanos) throws Exception {
+        long totalOps = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            run(batchOps);
+            totalOps += batchOps;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return totalOps * 1e9 / elapsed;
+    }
+
+    private Result summarize(double[] samples) {
+        Result result = new Result();
+        result.name = mName;
+        result.unit = mUnit;
+        result.min = Double.MAX_VALUE;
+        for (double sample : samples) {
+            result.mean += sample;
+            result.min = Math.min(result.min, sample);
+            result.max = Math.max(result.max, sample);
+        }
+        result.mean /= samples.length;
+        for (double sample : samples) {
+            result.error += (sample - result.mean) * (sample - result.mean);
+        }
+        result.error = (samples.length > 1) ? Math.sqrt(result.error / (samples.length - 1)) : 0;
+        return result;
+    }
+}
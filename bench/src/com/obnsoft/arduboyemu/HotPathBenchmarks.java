@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmarks of the emulation hot paths.
+ *
+ * Usage: java com.obnsoft.arduboyemu.HotPathBenchmarks [-w warmup_ms]
+ *        [-n iterations] [-m iteration_ms] [-b name_filter] [roms.hex...]
+ *
+ * The benchmarks of the native machine run only with the given ROMs.
+ */
+public class HotPathBenchmarks {
+
+    private static final int FRAMES_VARIATION = 16;
+    private static final int HEX_LINES = 2048; // about 90KB of .hex text
+    private static final int TRANSFER_BYTES = 1024 * 1024;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Benchmark with a native machine running the ROM.
+     */
+    private static abstract class NativeBenchmark extends Benchmark {
+
+        protected String    mRomPath;
+        protected long      mHandle;
+        private ByteBuffer  mFramebuffer;
+
+        NativeBenchmark(String name, String unit, String romPath) {
+            super(name + " " + new File(romPath).getName(), unit);
+            mRomPath = romPath;
+        }
+
+        @Override
+        protected void setUp() throws Exception {
+            mFramebuffer = ByteBuffer.allocateDirect(Native.PACKED_SIZE);
+            mHandle = Native.create();
+            if (mHandle == 0 || !Native.setup(mHandle, mRomPath, false)) {
+                throw new IOException("Failed to load " + mRomPath);
+            }
+            Native.attachFramebuffer(mHandle, mFramebuffer, Native.FRAMEBUFFER_PACKED);
+        }
+
+        @Override
+        protected void tearDown() {
+            if (mHandle != 0) {
+                Native.teardown(mHandle);
+                Native.destroy(mHandle);
+                mHandle = 0;
+            }
+        }
+    }
+
+    private static class LoopBenchmark extends NativeBenchmark {
+
+        LoopBenchmark(String romPath) {
+            super("Native.loop", "frames", romPath);
+        }
+
+        @Override
+        protected void run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                consume(Native.loop(mHandle));
+            }
+        }
+    }
+
+    private static class ButtonEventBenchmark extends NativeBenchmark {
+
+        ButtonEventBenchmark(String romPath) {
+            super("Native.buttonEvent", "calls", romPath);
+        }
+
+        @Override
+        protected void run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                Native.buttonEvent(mHandle, i % Native.BUTTON_MAX, (i & 8) == 0);
+            }
+        }
+    }
+
+    private static class LedStateBenchmark extends NativeBenchmark {
+
+        private int[] mLeds = new int[Native.STATUS_LED_TX + 1];
+
+        LedStateBenchmark(String romPath) {
+            super("Native.getLedState", "calls", romPath);
+        }
+
+        @Override
+        protected void run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                Native.getLedState(mHandle, mLeds);
+                consume(mLeds[0]);
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static class GifAddFrameBenchmark extends Benchmark {
+
+        private GifEncoder  mEncoder = new GifEncoder();
+        private ByteBuffer[] mFrames;
+        private File        mFile;
+
+        GifAddFrameBenchmark() {
+            super("GifEncoder.addFrame", "frames");
+        }
+
+        @Override
+        protected void setUp() throws IOException {
+            mFrames = createFrames();
+            mFile = File.createTempFile("bench", ".gif");
+            if (!mEncoder.start(mFile)) {
+                throw new IOException("Failed to start " + mFile);
+            }
+        }
+
+        @Override
+        protected void run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                mEncoder.addFrame(mFrames[i % FRAMES_VARIATION]);
+            }
+        }
+
+        @Override
+        protected void tearDown() {
+            mEncoder.finish(mFile);
+            mFile.delete();
+        }
+    }
+
+    private static class LzwCompressBenchmark extends Benchmark {
+
+        private byte[][]        mIndexedPixels;
+        private CountingStream  mOut = new CountingStream();
+        private LZWEncoder      mEncoder = new LZWEncoder(1);
+
+        LzwCompressBenchmark() {
+            super("LZWEncoder.compress", "frames");
+        }
+
+        @Override
+        protected void setUp() {
+            ByteBuffer[] frames = createFrames();
+            mIndexedPixels = new byte[FRAMES_VARIATION][PackedScreen.PIXELS];
+            for (int i = 0; i < FRAMES_VARIATION; i++) {
+                PackedScreen.toIndexedPixels(frames[i], mIndexedPixels[i]);
+            }
+        }
+
+        @Override
+        protected void run(int ops) throws IOException {
+            for (int i = 0; i < ops; i++) {
+                mEncoder.encode(mOut, mIndexedPixels[i % FRAMES_VARIATION],
+                        PackedScreen.PIXELS);
+            }
+            consume(mOut.mCount);
+        }
+    }
+
+    private static class ExtractHexBenchmark extends Benchmark {
+
+        private File    mArduboyFile;
+        private File    mHexFile;
+
+        ExtractHexBenchmark() {
+            super("ArduboyUtils.extractHexFromArduboy", "files");
+        }
+
+        @Override
+        protected void setUp() throws IOException {
+            mArduboyFile = File.createTempFile("bench", ".arduboy");
+            mHexFile = File.createTempFile("bench", ".hex");
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mArduboyFile));
+            try {
+                out.putNextEntry(new ZipEntry("game.hex"));
+                Random random = new Random(0);
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < HEX_LINES; i++) {
+                    sb.setLength(0);
+                    sb.append(String.format(":10%04X00", (i * 16) & 0xFFFF));
+                    for (int j = 0; j < 17; j++) {
+                        sb.append(String.format("%02X", random.nextInt(256)));
+                    }
+                    sb.append('\n');
+                    out.write(sb.toString().getBytes("US-ASCII"));
+                }
+                out.closeEntry();
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        protected void run(int ops) throws IOException {
+            for (int i = 0; i < ops; i++) {
+                if (!ArduboyUtils.extractHexFromArduboy(mArduboyFile, mHexFile, true)) {
+                    throw new IOException("Failed to extract " + mArduboyFile);
+                }
+            }
+            consume(mHexFile.length());
+        }
+
+        @Override
+        protected void tearDown() {
+            mArduboyFile.delete();
+            mHexFile.delete();
+        }
+    }
+
+    /**
+     * Copy from memory to memory, so that only the copy loop is measured.
+     * The throughput is in MiB per second.
+     */
+    private static class TransferBytesBenchmark extends Benchmark {
+
+        private int             mBufferSize;
+        private byte[]          mData;
+        private CountingStream  mOut = new CountingStream();
+
+        TransferBytesBenchmark(int bufferSize) {
+            super("StreamUtils.transferBytes buffer " + bufferSize / 1024 + "KiB", "MiB");
+            mBufferSize = bufferSize;
+        }
+
+        @Override
+        protected void setUp() {
+            mData = new byte[TRANSFER_BYTES];
+            new Random(0).nextBytes(mData);
+        }
+
+        @Override
+        protected void run(int ops) throws IOException {
+            for (int i = 0; i < ops; i++) {
+                StreamUtils.transferBytes(new ByteArrayInputStream(mData), mOut, mBufferSize,
+                        null);
+            }
+            consume(mOut.mCount);
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    /**
+     * Frames with random noise over a half of the screen, which is harder to
+     * compress than typical game screens.
+     */
+    private static ByteBuffer[] createFrames() {
+        Random random = new Random(0);
+        ByteBuffer[] frames = new ByteBuffer[FRAMES_VARIATION];
+        for (int i = 0; i < FRAMES_VARIATION; i++) {
+            ByteBuffer packed = ByteBuffer.allocateDirect(Native.PACKED_SIZE);
+            for (int j = 0; j < PackedScreen.WIDTH * PackedScreen.PAGES; j++) {
+                packed.put(j, (byte) ((j % PackedScreen.WIDTH < PackedScreen.WIDTH / 2)
+                        ? random.nextInt(256) : 0));
+            }
+            packed.put(Native.PACKED_FLAGS, (byte) Native.PACKED_FLAG_DISPLAY_ON);
+            packed.put(Native.PACKED_CONTRAST, (byte) 0xFF);
+            frames[i] = packed;
+        }
+        return frames;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) throws Exception {
+        int warmupMillis = Benchmark.DEFAULT_WARMUP_MILLIS;
+        int iterations = Benchmark.DEFAULT_ITERATIONS;
+        int iterationMillis = Benchmark.DEFAULT_ITERATION_MILLIS;
+        String filter = null;
+        List<String> roms = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-w".equals(arg) && i + 1 < args.length) {
+                warmupMillis = Integer.parseInt(args[++i]);
+            } else if ("-n".equals(arg) && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if ("-m".equals(arg) && i + 1 < args.length) {
+                iterationMillis = Integer.parseInt(args[++i]);
+            } else if ("-b".equals(arg) && i + 1 < args.length) {
+                filter = args[++i];
+            } else {
+                roms.add(arg);
+            }
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (String rom : roms) {
+            benchmarks.add(new LoopBenchmark(rom));
+        }
+        if (!roms.isEmpty()) {
+            benchmarks.add(new ButtonEventBenchmark(roms.get(0)));
+            benchmarks.add(new LedStateBenchmark(roms.get(0)));
+        }
+        benchmarks.add(new GifAddFrameBenchmark());
+        benchmarks.add(new LzwCompressBenchmark());
+        benchmarks.add(new ExtractHexBenchmark());
+        benchmarks.add(new TransferBytesBenchmark(StreamUtils.BUFFER_SIZE));
+        benchmarks.add(new TransferBytesBenchmark(StreamUtils.SMALL_BUFFER_SIZE));
+
+        for (Benchmark benchmark : benchmarks) {
+            if (filter != null && !benchmark.getName().contains(filter)) {
+                continue;
+            }
+            System.out.println(benchmark.measure(warmupMillis, iterations, iterationMillis));
+        }
+    }
+}
@@ -46,6 +46,11 @@
 #define AVR_FREQUENCY (500000)
 #define REFRESH_PERIOD_US (512000) // for 1/60 frame
 
+#define ALL_PAGES_DIRTY ((1 << SSD1306_VIRT_PAGES) - 1)
+
+#define STATE_MAGIC (0x53425241) // "ARBS"
+#define STATE_VERSION (2)
+
 #define RGB(r,g,b) (0xFF000000 | (uint8_t)(r) << 16 | (uint8_t)(g) << 8 | (uint8_t)(b))
 #define BLACK RGB(0, 0, 0)
 
@@ -72,12 +77,19 @@ static const ssd1306_wiring_t ssd1306_wiring =
 	.reset.pin = 7,
 };
 
-static struct arduboy_avr_mod_state {
+struct arduboy_avr {
 	struct avr_t *avr;
 	ssd1306_t ssd1306;
 	bool yield, is_refresh_postpone;
-	uint8_t lumamap[OLED_HEIGHT_PX][OLED_WIDTH_PX];
-} mod_s;
+	uint8_t vram[SSD1306_VIRT_PAGES][SSD1306_VIRT_COLUMNS];
+	uint8_t dirty_pages;
+	uint16_t rendered_flags;
+	int timing[TIMING_COUNT];
+	uint8_t *pristine_mcu;
+	ssd1306_t pristine_ssd1306;
+	uint32_t flash_checksum;
+	uint32_t boot_base;
+};
 
 typedef struct {
 	avr_t			core;
@@ -97,27 +109,59 @@ typedef struct {
 
 /*------------------------------------------------------------------------------------------------*/
 
+static long long get_nanos(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
 static void android_logger(avr_t * avr, const int level, const char * format, va_list ap)
 {
 	if (!avr || avr->log >= level) {
+#ifdef __ANDROID__
 		int android_level = ANDROID_LOG_SILENT - level;
 		__android_log_vprint(android_level, LOG_TAG, format, ap);
+#else
+		vfprintf(stderr, format, ap);
+#endif
 	}
 }
 
-static void update_lumamap(struct ssd1306_t *ssd1306)
+static void update_vram(arduboy_avr_t *mod)
 {
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	for (int p = 0; p < SSD1306_VIRT_PAGES; p++) {
-		for (int c = 0; c < SSD1306_VIRT_COLUMNS; c++) {
-			uint8_t px_col = ssd1306->vram[p][c];
-			for (int y = 0; y < 8; y++) {
-				mod_s.lumamap[p * 8 + y][c] = px_col & 0x1;
-				px_col >>= 1;
-			}
+		if (memcmp(mod->vram[p], ssd1306->vram[p], SSD1306_VIRT_COLUMNS)) {
+			memcpy(mod->vram[p], ssd1306->vram[p], SSD1306_VIRT_COLUMNS);
+			mod->dirty_pages |= 1 << p;
 		}
 	}
 }
 
+static uint8_t get_display_flags(struct ssd1306_t *ssd1306)
+{
+	uint8_t flags = 0;
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_ON)) {
+		flags |= PACKED_FLAG_DISPLAY_ON;
+	}
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_INVERTED)) {
+		flags |= PACKED_FLAG_INVERTED;
+	}
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_SEGMENT_REMAP_0)) {
+		flags |= PACKED_FLAG_FLIP_X;
+	}
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_COM_SCAN_NORMAL)) {
+		flags |= PACKED_FLAG_FLIP_Y;
+	}
+	return flags;
+}
+
+static inline int get_pixel(const arduboy_avr_t *mod, int x, int y)
+{
+	return (mod->vram[y / 8][x] >> (y % 8)) & 0x1;
+}
+
 static inline int get_fg_colour(uint8_t invert, float opacity)
 {
 	return invert ? BLACK : RGB(255 * opacity, 255 * opacity, 255 * opacity);
@@ -134,8 +178,9 @@ static inline float contrast_to_opacity(uint8_t contrast)
 	return contrast / 512.0 + 0.5;
 }
 
-static void render_screen(int *pixels, struct ssd1306_t *ssd1306)
+static void render_screen(arduboy_avr_t *mod, int *pixels, uint8_t dirty_pages)
 {
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	if (!ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_ON)) {
 		return;
 	}
@@ -156,27 +201,41 @@ static void render_screen(int *pixels, struct ssd1306_t *ssd1306)
 	int bg_color = get_bg_colour(invert, opacity);
 	int fg_color = get_fg_colour(invert, opacity);
 
-	// Render screen
+	// Render rows of changed pages only
 	for (int y = orig_y; y >= 0 && y < OLED_HEIGHT_PX; y += vy) {
+		if (!(dirty_pages & 1 << (y / 8))) {
+			pixels += OLED_WIDTH_PX;
+			continue;
+		}
 		for (int x = orig_x; x >= 0 && x < OLED_WIDTH_PX; x += vx) {
-			*pixels++ = mod_s.lumamap[y][x] ? fg_color : bg_color;
+			*pixels++ = get_pixel(mod, x, y) ? fg_color : bg_color;
 		}
 	}
 }
 
+static void render_packed(arduboy_avr_t *mod, uint8_t *packed)
+{
+	ssd1306_t *ssd1306 = &mod->ssd1306;
+	// Hand over the page-ordered VRAM as is, expanding pixels is up to the consumer
+	memcpy(packed, mod->vram, PACKED_VRAM_SIZE);
+	packed[PACKED_FLAGS] = get_display_flags(ssd1306);
+	packed[PACKED_CONTRAST] = ssd1306->contrast_register;
+}
+
 static void hook_ssd1306_write_data(struct avr_irq_t *irq, uint32_t value, void *param)
 {
-	ssd1306_t *ssd1306 = (ssd1306_t *) param;
+	arduboy_avr_t *mod = (arduboy_avr_t *) param;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	if (ssd1306->di_pin == SSD1306_VIRT_DATA) {
 		bool is_timing;
-		if (mod_s.is_refresh_postpone) {
+		if (mod->is_refresh_postpone) {
 			is_timing = ssd1306->cursor.page == SSD1306_VIRT_PAGES - 1 &&
 					ssd1306->cursor.column == SSD1306_VIRT_COLUMNS - 1;
 		} else {
 			is_timing = ssd1306->cursor.page == 0 && ssd1306->cursor.column == 0;
 		}
 		if (is_timing && ssd1306_get_flag(ssd1306, SSD1306_FLAG_DIRTY)) {
-			update_lumamap(ssd1306);
+			update_vram(mod);
 			ssd1306_set_flag(ssd1306, SSD1306_FLAG_DIRTY, 0);
 		}
 	}
@@ -192,7 +251,8 @@ static avr_cycle_count_t refresh(
 		avr_cycle_count_t when,
 		void *param)
 {
-	mod_s.yield = true;
+	arduboy_avr_t *mod = (arduboy_avr_t *) param;
+	mod->yield = true;
 	return when + avr_usec_to_cycles(avr, REFRESH_PERIOD_US);
 }
 
@@ -225,12 +285,93 @@ static inline avr_regbit_t get_tx_regbit(mcu_t *mcu)
 	return ret;
 }
 
+static uint32_t get_checksum(const uint8_t *p, size_t size)
+{
+	uint32_t hash = 2166136261U; // FNV-1a
+	while (size--) {
+		hash = (hash ^ *p++) * 16777619U;
+	}
+	return hash;
+}
+
+static void clear_leds(avr_t *avr)
+{
+	mcu_t *mcu = (mcu_t *) avr;
+	avr_regbit_set(avr, mcu->timer1.comp[AVR_TIMER_COMPB].com_pin);
+	avr_regbit_set(avr, mcu->timer0.comp[AVR_TIMER_COMPA].com_pin);
+	avr_regbit_set(avr, mcu->timer1.comp[AVR_TIMER_COMPA].com_pin);
+	avr_regbit_set(avr, get_rx_regbit(mcu));
+	avr_regbit_set(avr, get_tx_regbit(mcu));
+}
+
+static void clear_screen(arduboy_avr_t *mod)
+{
+	memset(mod->vram, 0, sizeof(mod->vram));
+	mod->dirty_pages = ALL_PAGES_DIRTY;
+	mod->rendered_flags = 0xFFFF;
+}
+
 /*------------------------------------------------------------------------------------------------*/
 
-int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
+/*
+ * Decode .hex into the whole flash image, which is filled with 0xFF as erased.
+ * Returns the boot address, or -1 if failed.
+ */
+int arduboy_avr_read_hex(const char *hex_file_path, uint8_t *p_flash)
+{
+	uint32_t boot_base, boot_size;
+	uint8_t *boot = read_ihex_file(hex_file_path, &boot_size, &boot_base);
+	if (!boot) {
+		LOGE("Unable to load \"%s\"\n", hex_file_path);
+		return -1;
+	}
+	if (boot_base + boot_size > FLASH_SIZE) {
+		free(boot);
+		LOGE("Too large program \"%s\"\n", hex_file_path);
+		return -1;
+	}
+	memset(p_flash, 0xFF, FLASH_SIZE);
+	memcpy(p_flash + boot_base, boot, boot_size);
+	free(boot);
+	return boot_base;
+}
+
+arduboy_avr_t *arduboy_avr_create(void)
+{
+	return (arduboy_avr_t *) calloc(1, sizeof(arduboy_avr_t));
+}
+
+void arduboy_avr_destroy(arduboy_avr_t *mod)
+{
+	if (mod) {
+		arduboy_avr_teardown(mod);
+		free(mod);
+	}
+}
+
+int arduboy_avr_setup(arduboy_avr_t *mod, const char *hex_file_path, bool is_tuned)
+{
+	uint8_t *p_flash = (uint8_t *) malloc(FLASH_SIZE);
+	if (!p_flash) {
+		return -1;
+	}
+	int ret = -1;
+	int boot_base = arduboy_avr_read_hex(hex_file_path, p_flash);
+	if (boot_base >= 0) {
+		ret = arduboy_avr_setup_flash(mod, p_flash, boot_base, is_tuned);
+	}
+	free(p_flash);
+	return ret;
+}
+
+/*
+ * Setup with the flash image decoded by arduboy_avr_read_hex() beforehand.
+ */
+int arduboy_avr_setup_flash(arduboy_avr_t *mod, const uint8_t *p_flash, uint32_t boot_base,
+		bool is_tuned)
 {
 	avr_global_logger_set(android_logger);
-	mod_s.avr = NULL;
+	arduboy_avr_teardown(mod);
 
 	avr_t *avr = avr_make_mcu_by_name("atmega32u4");
 	if (!avr) {
@@ -249,21 +390,12 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 	*/
 	avr_extint_set_strict_lvl_trig(avr, EXTINT_IRQ_OUT_INT6, 0);
 
-	{
-		/* Load .hex and setup program counter */
-		uint32_t boot_base, boot_size;
-		uint8_t * boot = read_ihex_file(hex_file_path, &boot_size, &boot_base);
-		if (!boot) {
-			avr_terminate(avr);
-			LOGE("Unable to load \"%s\"\n", hex_file_path);
-			return -1;
-		}
-		memcpy(avr->flash + boot_base, boot, boot_size);
-		free(boot);
-		avr->pc = boot_base;
-		/* end of flash, remember we are writing /code/ */
-		avr->codeend = avr->flashend;
-	}
+	/* Load the flash image and setup program counter */
+	memcpy(avr->flash, p_flash, FLASH_SIZE);
+	avr->pc = boot_base;
+	mod->boot_base = boot_base;
+	/* end of flash, remember we are writing /code/ */
+	avr->codeend = avr->flashend;
 
 	/* more simulation parameters */
 	avr->log = LOG_DEBUG; // LOG_NONE
@@ -272,15 +404,15 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 	avr->run_cycle_limit = avr_usec_to_cycles(avr, REFRESH_PERIOD_US);
 
 	/* setup and connect display controller */
-	ssd1306_t *ssd1306 = &mod_s.ssd1306;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	ssd1306_init(avr, ssd1306, OLED_WIDTH_PX, OLED_HEIGHT_PX);
 	ssd1306_connect(ssd1306, (ssd1306_wiring_t *) &ssd1306_wiring);
-	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_SPI_BYTE_IN, hook_ssd1306_write_data, ssd1306);
-	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_TWI_OUT, hook_ssd1306_write_data, ssd1306);
-	memset(mod_s.lumamap, 0, sizeof(mod_s.lumamap));
+	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_SPI_BYTE_IN, hook_ssd1306_write_data, mod);
+	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_TWI_OUT, hook_ssd1306_write_data, mod);
+	clear_screen(mod);
 
 	/* Setup display render timers */
-	avr_cycle_timer_register_usec(avr, REFRESH_PERIOD_US, refresh, NULL);
+	avr_cycle_timer_register_usec(avr, REFRESH_PERIOD_US, refresh, mod);
 
 	/* Special tuning */
 	mcu_t *mcu = (mcu_t *) avr;
@@ -296,47 +428,77 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 		mcu->timer3.comp[AVR_TIMER_COMPB].interrupt.vector = _VECTOR(0);
 	}
 
-	/* Clear LEDs */
-	avr_regbit_set(avr, mcu->timer1.comp[AVR_TIMER_COMPB].com_pin);
-	avr_regbit_set(avr, mcu->timer0.comp[AVR_TIMER_COMPA].com_pin);
-	avr_regbit_set(avr, mcu->timer1.comp[AVR_TIMER_COMPA].com_pin);
-	avr_regbit_set(avr, get_rx_regbit(mcu));
-	avr_regbit_set(avr, get_tx_regbit(mcu));
+	clear_leds(avr);
+
+	/* Keep the initial state as a reference for relocating save states */
+	mod->pristine_mcu = (uint8_t *) malloc(sizeof(mcu_t));
+	if (mod->pristine_mcu) {
+		memcpy(mod->pristine_mcu, mcu, sizeof(mcu_t));
+	}
+	memcpy(&mod->pristine_ssd1306, ssd1306, sizeof(ssd1306_t));
+	mod->flash_checksum = get_checksum(avr->flash, avr->flashend + 1);
 
-	mod_s.avr = avr;
+	mod->avr = avr;
 	LOGI("Setup AVR\n");
 	return 0;
 }
 
-bool arduboy_avr_get_eeprom(char *p_array)
+/*
+ * Power-on reset of the existing MCU, keeping the flash and EEPROM.
+ */
+bool arduboy_avr_reset(arduboy_avr_t *mod)
 {
-	if (!mod_s.avr) {
+	avr_t *avr = mod->avr;
+	if (!avr) {
 		return false;
 	}
-	mcu_t *mcu = (mcu_t *) mod_s.avr;
+
+	/* avr_reset() clears only I/O registers, but a power-on also loses SRAM */
+	memset(avr->data, 0, avr->ramend + 1);
+	avr_reset(avr);
+	avr->pc = mod->boot_base;
+
+	/* avr_reset() cancels all cycle timers */
+	avr_cycle_timer_register_usec(avr, REFRESH_PERIOD_US, refresh, mod);
+
+	memcpy(&mod->ssd1306, &mod->pristine_ssd1306, sizeof(ssd1306_t));
+	clear_screen(mod);
+	clear_leds(avr);
+	mod->yield = false;
+	memset(mod->timing, 0, sizeof(mod->timing));
+	LOGI("Reset AVR\n");
+	return true;
+}
+
+bool arduboy_avr_get_eeprom(arduboy_avr_t *mod, char *p_array)
+{
+	if (!mod->avr) {
+		return false;
+	}
+	mcu_t *mcu = (mcu_t *) mod->avr;
 	memcpy(p_array, mcu->eeprom.eeprom, mcu->eeprom.size);
 	return true;
 }
 
-bool arduboy_avr_set_eeprom(const char *p_array)
+bool arduboy_avr_set_eeprom(arduboy_avr_t *mod, const char *p_array)
 {
-	if (!mod_s.avr) {
+	if (!mod->avr) {
 		return false;
 	}
-	mcu_t *mcu = (mcu_t *) mod_s.avr;
+	mcu_t *mcu = (mcu_t *) mod->avr;
 	memcpy(mcu->eeprom.eeprom, p_array, mcu->eeprom.size);
 	return true;
 }
 
-bool arduboy_avr_set_refresh_timing(bool is_postpone)
+bool arduboy_avr_set_refresh_timing(arduboy_avr_t *mod, bool is_postpone)
 {
-	mod_s.is_refresh_postpone = is_postpone;
+	mod->is_refresh_postpone = is_postpone;
 	return true;
 }
 
-bool arduboy_avr_button_event(enum button_e btn_e, bool pressed)
+bool arduboy_avr_button_event(arduboy_avr_t *mod, enum button_e btn_e, bool pressed)
 {
-        avr_t *avr = mod_s.avr;
+	avr_t *avr = mod->avr;
 	if (!avr || btn_e >= BTN_COUNT) {
 		return false;
 	}
@@ -347,26 +509,55 @@ bool arduboy_avr_button_event(enum button_e btn_e, bool pressed)
 	return true;
 }
 
-bool arduboy_avr_loop(int *pixels)
+int arduboy_avr_loop(arduboy_avr_t *mod, void *framebuffer, enum framebuffer_e format)
 {
-	avr_t *avr = mod_s.avr;
+	avr_t *avr = mod->avr;
 	if (!avr) {
-		return false;
+		return -1;
 	}
-	mod_s.yield = false;
-	while (!mod_s.yield) {
+	long long start_nanos = get_nanos();
+	avr_cycle_count_t start_cycle = avr->cycle;
+	mod->yield = false;
+	while (!mod->yield) {
 		int state = avr_run(avr);
 		if (state == cpu_Done || state == cpu_Crashed) {
-			return false;
+			return -1;
 		}
 	}
-	render_screen(pixels, &mod_s.ssd1306);
-	return true;
+	long long run_nanos = get_nanos();
+	mod->timing[TIMING_RUN_NANOS] = (int) (run_nanos - start_nanos);
+	mod->timing[TIMING_CYCLES] = (int) (avr->cycle - start_cycle);
+
+	/* Changing display flags or contrast affects all pages */
+	ssd1306_t *ssd1306 = &mod->ssd1306;
+	uint16_t flags = get_display_flags(ssd1306) << 8 | ssd1306->contrast_register;
+	if (flags != mod->rendered_flags) {
+		mod->rendered_flags = flags;
+		mod->dirty_pages = ALL_PAGES_DIRTY;
+	}
+
+	/* Skip rendering if the display hasn't changed since the last frame */
+	uint8_t dirty_pages = mod->dirty_pages;
+	if (framebuffer && dirty_pages) {
+		if (format == FRAMEBUFFER_PACKED) {
+			render_packed(mod, (uint8_t *) framebuffer);
+		} else {
+			render_screen(mod, (int *) framebuffer, dirty_pages);
+		}
+	}
+	mod->timing[TIMING_RENDER_NANOS] = (int) (get_nanos() - run_nanos);
+	mod->dirty_pages = 0;
+	return dirty_pages;
+}
+
+void arduboy_avr_invalidate_screen(arduboy_avr_t *mod)
+{
+	mod->dirty_pages = ALL_PAGES_DIRTY;
 }
 
-bool arduboy_avr_get_led_state(int *leds)
+bool arduboy_avr_get_led_state(arduboy_avr_t *mod, int *leds)
 {
-	avr_t *avr = mod_s.avr;
+	avr_t *avr = mod->avr;
 	if (!avr) {
 		return false;
 	}
@@ -379,11 +570,307 @@ bool arduboy_avr_get_led_state(int *leds)
 	return true;
 }
 
-void arduboy_avr_teardown(void)
+bool arduboy_avr_get_timing(arduboy_avr_t *mod, int *timing)
+{
+	if (!mod->avr) {
+		return false;
+	}
+	memcpy(timing, mod->timing, sizeof(mod->timing));
+	return true;
+}
+
+enum cpu_state_e arduboy_avr_get_cpu_state(arduboy_avr_t *mod)
+{
+	if (!mod->avr) {
+		return CPU_STATE_NONE;
+	}
+	switch (mod->avr->state) {
+	case cpu_Sleeping:
+		return CPU_STATE_SLEEPING;
+	case cpu_Done:
+		return CPU_STATE_DONE;
+	case cpu_Crashed:
+		return CPU_STATE_CRASHED;
+	default:
+		return CPU_STATE_RUNNING;
+	}
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+/*
+ * Layout of a save state:
+ *   struct state_header
+ *   mcu_t at setup, mcu_t at saving
+ *   data space (registers, I/O and SRAM)
+ *   EEPROM
+ *   ssd1306_t at setup, ssd1306_t at saving
+ *   VRAM snapshot
+ *   value and flags of each IRQ
+ *
+ * The machine structures contain pointers which are valid only in the process that saved them.
+ * When loading, a word which hasn't changed since setup takes the value of the current setup,
+ * and a changed word is relocated only if it was a pointer into the old machine structures at
+ * setup, so that plain data is never taken for a pointer. The pointers which may be null at
+ * setup, those of cycle timers and interrupts, are relocated field by field.
+ * Callbacks of cycle timers are code addresses, so a state is loaded only by the same build of
+ * this library, which is identified by build_id.
+ */
+struct state_header {
+	uint32_t magic;
+	uint16_t version;
+	uint16_t pointer_size;
+	uint32_t mcu_size;
+	uint32_t ssd1306_size;
+	uint32_t data_size;
+	uint32_t eeprom_size;
+	uint32_t irq_count;
+	uint32_t flash_checksum;
+	uint64_t mcu_base;
+	uint64_t mod_base;
+	uint64_t code_base;
+	uint64_t build_id;
+};
+
+struct relocation {
+	uintptr_t old_mcu, new_mcu;
+	uintptr_t old_mod, new_mod;
+	intptr_t code_delta;
+};
+
+static uint64_t hash_bytes(uint64_t hash, const void *p, size_t size)
+{
+	const uint8_t *bytes = (const uint8_t *) p;
+	for (size_t i = 0; i < size; i++) {
+		hash = (hash ^ bytes[i]) * 0x100000001B3ULL; // FNV-1a
+	}
+	return hash;
+}
+
+/*
+ * Any rebuild changes the compile time of this file, and a change of simavr moves its code, in
+ * which the callbacks of cycle timers live, relative to this file.
+ */
+static uint64_t get_build_id(void)
+{
+	static const char build_time[] = __DATE__ " " __TIME__;
+	const uintptr_t code[] = {
+		(uintptr_t) &avr_init,
+		(uintptr_t) &avr_cycle_timer_register,
+		(uintptr_t) &avr_watchdog_init,
+		(uintptr_t) &avr_uart_init,
+		(uintptr_t) &avr_adc_init,
+		(uintptr_t) &avr_timer_init,
+		(uintptr_t) &avr_twi_init,
+		(uintptr_t) &avr_usb_init,
+		(uintptr_t) &ssd1306_init,
+	};
+	uint64_t hash = hash_bytes(0xCBF29CE484222325ULL, build_time, sizeof(build_time));
+	for (int i = 0; i < (int) (sizeof(code) / sizeof(code[0])); i++) {
+		intptr_t offset = (intptr_t) (code[i] - (uintptr_t) &arduboy_avr_loop);
+		hash = hash_bytes(hash, &offset, sizeof(offset));
+	}
+	return hash;
+}
+
+static void fill_state_header(arduboy_avr_t *mod, struct state_header *header)
+{
+	avr_t *avr = mod->avr;
+	mcu_t *mcu = (mcu_t *) avr;
+	memset(header, 0, sizeof(*header));
+	header->magic = STATE_MAGIC;
+	header->version = STATE_VERSION;
+	header->pointer_size = sizeof(void *);
+	header->mcu_size = sizeof(mcu_t);
+	header->ssd1306_size = sizeof(ssd1306_t);
+	header->data_size = avr->ramend + 1;
+	header->eeprom_size = mcu->eeprom.size;
+	header->irq_count = avr->irq_pool.count;
+	header->flash_checksum = mod->flash_checksum;
+	header->mcu_base = (uintptr_t) mcu;
+	header->mod_base = (uintptr_t) mod;
+	header->code_base = (uintptr_t) &arduboy_avr_loop;
+	header->build_id = get_build_id();
+}
+
+static uintptr_t relocate_pointer(uintptr_t value, const struct relocation *reloc)
+{
+	if (value >= reloc->old_mcu && value < reloc->old_mcu + sizeof(mcu_t)) {
+		return value - reloc->old_mcu + reloc->new_mcu;
+	}
+	if (value >= reloc->old_mod && value < reloc->old_mod + sizeof(arduboy_avr_t)) {
+		return value - reloc->old_mod + reloc->new_mod;
+	}
+	return value;
+}
+
+static void restore_image(uint8_t *dst, const uint8_t *pristine, const uint8_t *old_pristine,
+		const uint8_t *saved, size_t size, const struct relocation *reloc)
+{
+	size_t offset;
+	for (offset = 0; offset + sizeof(uintptr_t) <= size; offset += sizeof(uintptr_t)) {
+		uintptr_t word, old_word;
+		memcpy(&word, saved + offset, sizeof(word));
+		memcpy(&old_word, old_pristine + offset, sizeof(old_word));
+		if (word == old_word) {
+			memcpy(dst + offset, pristine + offset, sizeof(word));
+		} else {
+			if (relocate_pointer(old_word, reloc) != old_word) {
+				word = relocate_pointer(word, reloc);
+			}
+			memcpy(dst + offset, &word, sizeof(word));
+		}
+	}
+	memcpy(dst + offset, saved + offset, size - offset);
+}
+
+static uintptr_t get_saved_word(const mcu_t *mcu, const uint8_t *saved_mcu, const void *field)
+{
+	uintptr_t word;
+	memcpy(&word, saved_mcu + ((const uint8_t *) field - (const uint8_t *) mcu), sizeof(word));
+	return word;
+}
+
+static void *get_saved_pointer(const mcu_t *mcu, const uint8_t *saved_mcu, const void *field,
+		const struct relocation *reloc)
+{
+	return (void *) relocate_pointer(get_saved_word(mcu, saved_mcu, field), reloc);
+}
+
+static void relocate_runtime_pointers(avr_t *avr, const uint8_t *saved_mcu,
+		const struct relocation *reloc)
+{
+	mcu_t *mcu = (mcu_t *) avr;
+
+	/* Cycle timers may have been registered after setup, with callbacks in this library */
+	avr_cycle_timer_pool_t *pool = &avr->cycle_timers;
+	for (int i = 0; i < (int) (sizeof(pool->timer_slots) / sizeof(pool->timer_slots[0])); i++) {
+		avr_cycle_timer_slot_t *slot = &pool->timer_slots[i];
+		uintptr_t timer = get_saved_word(mcu, saved_mcu, &slot->timer);
+		slot->timer = (timer) ? (avr_cycle_timer_t) (timer + reloc->code_delta) : NULL;
+		slot->next = get_saved_pointer(mcu, saved_mcu, &slot->next, reloc);
+		slot->param = get_saved_pointer(mcu, saved_mcu, &slot->param, reloc);
+	}
+	pool->timer_free = get_saved_pointer(mcu, saved_mcu, &pool->timer_free, reloc);
+	pool->timer = get_saved_pointer(mcu, saved_mcu, &pool->timer, reloc);
+
+	/* Pending and running interrupts refer to the vectors in the peripherals */
+	avr_int_table_t *table = &avr->interrupts;
+	int count = sizeof(table->running) / sizeof(table->running[0]);
+	for (int i = 0; i < count; i++) {
+		table->running[i] = get_saved_pointer(mcu, saved_mcu, &table->running[i], reloc);
+	}
+	count = sizeof(table->pending.buffer) / sizeof(table->pending.buffer[0]);
+	for (int i = 0; i < count; i++) {
+		table->pending.buffer[i] =
+				get_saved_pointer(mcu, saved_mcu, &table->pending.buffer[i], reloc);
+	}
+}
+
+int arduboy_avr_get_state_size(arduboy_avr_t *mod)
+{
+	avr_t *avr = mod->avr;
+	if (!avr || !mod->pristine_mcu) {
+		return -1;
+	}
+	mcu_t *mcu = (mcu_t *) avr;
+	return sizeof(struct state_header) + sizeof(mcu_t) * 2 + avr->ramend + 1 + mcu->eeprom.size
+			+ sizeof(ssd1306_t) * 2 + sizeof(mod->vram) + avr->irq_pool.count * sizeof(uint32_t) * 2;
+}
+
+bool arduboy_avr_save_state(arduboy_avr_t *mod, uint8_t *p_state)
+{
+	avr_t *avr = mod->avr;
+	if (!avr || !mod->pristine_mcu) {
+		return false;
+	}
+	mcu_t *mcu = (mcu_t *) avr;
+	struct state_header header;
+	fill_state_header(mod, &header);
+
+	uint8_t *p = p_state;
+	memcpy(p, &header, sizeof(header));						p += sizeof(header);
+	memcpy(p, mod->pristine_mcu, sizeof(mcu_t));			p += sizeof(mcu_t);
+	memcpy(p, mcu, sizeof(mcu_t));							p += sizeof(mcu_t);
+	memcpy(p, avr->data, header.data_size);					p += header.data_size;
+	memcpy(p, mcu->eeprom.eeprom, header.eeprom_size);		p += header.eeprom_size;
+	memcpy(p, &mod->pristine_ssd1306, sizeof(ssd1306_t));	p += sizeof(ssd1306_t);
+	memcpy(p, &mod->ssd1306, sizeof(ssd1306_t));			p += sizeof(ssd1306_t);
+	memcpy(p, mod->vram, sizeof(mod->vram));				p += sizeof(mod->vram);
+	for (int i = 0; i < avr->irq_pool.count; i++) {
+		uint32_t irq_state[2] = { avr->irq_pool.irq[i]->value, avr->irq_pool.irq[i]->flags };
+		memcpy(p, irq_state, sizeof(irq_state));			p += sizeof(irq_state);
+	}
+	return true;
+}
+
+bool arduboy_avr_load_state(arduboy_avr_t *mod, const uint8_t *p_state, int size)
+{
+	avr_t *avr = mod->avr;
+	if (!avr || !mod->pristine_mcu || size != arduboy_avr_get_state_size(mod)) {
+		return false;
+	}
+
+	/* Only the state of the same program in the same build can be loaded */
+	struct state_header header, expected;
+	memcpy(&header, p_state, sizeof(header));
+	fill_state_header(mod, &expected);
+	if (header.magic != expected.magic || header.version != expected.version ||
+			header.pointer_size != expected.pointer_size ||
+			header.mcu_size != expected.mcu_size ||
+			header.ssd1306_size != expected.ssd1306_size ||
+			header.data_size != expected.data_size ||
+			header.eeprom_size != expected.eeprom_size ||
+			header.irq_count != expected.irq_count ||
+			header.flash_checksum != expected.flash_checksum ||
+			header.build_id != expected.build_id) {
+		LOGW("Incompatible state\n");
+		return false;
+	}
+
+	mcu_t *mcu = (mcu_t *) avr;
+	struct relocation reloc = {
+		.old_mcu = (uintptr_t) header.mcu_base,
+		.new_mcu = (uintptr_t) mcu,
+		.old_mod = (uintptr_t) header.mod_base,
+		.new_mod = (uintptr_t) mod,
+		.code_delta = (intptr_t) (expected.code_base - header.code_base),
+	};
+
+	const uint8_t *p = p_state + sizeof(header);
+	const uint8_t *old_pristine_mcu = p;					p += sizeof(mcu_t);
+	restore_image((uint8_t *) mcu, mod->pristine_mcu, old_pristine_mcu, p, sizeof(mcu_t), &reloc);
+	relocate_runtime_pointers(avr, p, &reloc);
+	p += sizeof(mcu_t);
+	memcpy(avr->data, p, header.data_size);					p += header.data_size;
+	memcpy(mcu->eeprom.eeprom, p, header.eeprom_size);		p += header.eeprom_size;
+	const uint8_t *old_pristine_ssd1306 = p;				p += sizeof(ssd1306_t);
+	restore_image((uint8_t *) &mod->ssd1306, (uint8_t *) &mod->pristine_ssd1306,
+			old_pristine_ssd1306, p, sizeof(ssd1306_t), &reloc);
+	p += sizeof(ssd1306_t);
+	memcpy(mod->vram, p, sizeof(mod->vram));				p += sizeof(mod->vram);
+	for (int i = 0; i < avr->irq_pool.count; i++) {
+		uint32_t irq_state[2];
+		memcpy(irq_state, p, sizeof(irq_state));			p += sizeof(irq_state);
+		avr->irq_pool.irq[i]->value = irq_state[0];
+		avr->irq_pool.irq[i]->flags = irq_state[1];
+	}
+
+	mod->yield = false;
+	mod->rendered_flags = 0xFFFF;
+	mod->dirty_pages = ALL_PAGES_DIRTY;
+	return true;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+void arduboy_avr_teardown(arduboy_avr_t *mod)
 {
-	if (mod_s.avr) {
-		avr_terminate(mod_s.avr);
-		mod_s.avr = NULL;
+	if (mod->avr) {
+		avr_terminate(mod->avr);
+		mod->avr = NULL;
+		free(mod->pristine_mcu);
+		mod->pristine_mcu = NULL;
 		LOGI("Terminate AVR\n");
 	}
 }
@@ -18,16 +18,27 @@
 
 
 #include <stdbool.h>
-#include <android/log.h>
+#include <stdint.h>
 
 #define OLED_WIDTH_PX (128)
 #define OLED_HEIGHT_PX (64)
+#define FLASH_SIZE (32 * 1024)
 
 #define LOG_TAG "ArbyEmulator"
+#ifdef __ANDROID__
+#include <android/log.h>
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#else
+/* Host build (see Makefile) */
+#include <stdio.h>
+#define LOGE(...) fprintf(stderr, LOG_TAG " E: " __VA_ARGS__)
+#define LOGW(...) fprintf(stderr, LOG_TAG " W: " __VA_ARGS__)
+#define LOGI(...) fprintf(stderr, LOG_TAG " I: " __VA_ARGS__)
+#define LOGD(...) fprintf(stderr, LOG_TAG " D: " __VA_ARGS__)
+#endif
 
 enum button_e {
 	BTN_UP = 0,
@@ -48,11 +59,66 @@ enum led_e {
 	LED_COUNT,
 };
 
-int arduboy_avr_setup(const char *hex_file_path, bool is_tuned);
-bool arduboy_avr_get_eeprom(char *p_array);
-bool arduboy_avr_set_eeprom(const char *p_array);
-bool arduboy_avr_set_refresh_timing(bool is_postpone);
-bool arduboy_avr_button_event(enum button_e btn_e, bool pressed);
-bool arduboy_avr_loop(int *pixels);
-bool arduboy_avr_get_led_state(int *leds);
-void arduboy_avr_teardown(void);
+enum timing_e {
+	TIMING_RUN_NANOS = 0,
+	TIMING_RENDER_NANOS,
+	TIMING_CYCLES,
+	TIMING_COUNT,
+};
+
+enum cpu_state_e {
+	CPU_STATE_NONE = 0,
+	CPU_STATE_RUNNING,
+	CPU_STATE_SLEEPING,
+	CPU_STATE_DONE,
+	CPU_STATE_CRASHED,
+};
+
+enum framebuffer_e {
+	FRAMEBUFFER_ARGB = 0,
+	FRAMEBUFFER_PACKED,
+};
+
+/* Layout of the packed framebuffer (in bytes) */
+#define PACKED_VRAM_SIZE (OLED_WIDTH_PX * OLED_HEIGHT_PX / 8)
+enum packed_e {
+	PACKED_FLAGS = PACKED_VRAM_SIZE,
+	PACKED_CONTRAST,
+	PACKED_SIZE = PACKED_VRAM_SIZE + 4,
+};
+
+#define PACKED_FLAG_DISPLAY_ON	(1 << 0)
+#define PACKED_FLAG_INVERTED	(1 << 1)
+#define PACKED_FLAG_FLIP_X		(1 << 2)
+#define PACKED_FLAG_FLIP_Y		(1 << 3)
+
+/* Layout of the status structure shared with Java (in ints) */
+enum status_e {
+	STATUS_LED = 0,
+	STATUS_TIMING = STATUS_LED + LED_COUNT,
+	STATUS_COUNT = STATUS_TIMING + TIMING_COUNT,
+};
+
+/* State of one emulated machine; any number of machines can run in parallel threads */
+typedef struct arduboy_avr arduboy_avr_t;
+
+int arduboy_avr_read_hex(const char *hex_file_path, uint8_t *p_flash);
+arduboy_avr_t *arduboy_avr_create(void);
+void arduboy_avr_destroy(arduboy_avr_t *mod);
+int arduboy_avr_setup(arduboy_avr_t *mod, const char *hex_file_path, bool is_tuned);
+int arduboy_avr_setup_flash(arduboy_avr_t *mod, const uint8_t *p_flash, uint32_t boot_base,
+		bool is_tuned);
+bool arduboy_avr_reset(arduboy_avr_t *mod);
+bool arduboy_avr_get_eeprom(arduboy_avr_t *mod, char *p_array);
+bool arduboy_avr_set_eeprom(arduboy_avr_t *mod, const char *p_array);
+bool arduboy_avr_set_refresh_timing(arduboy_avr_t *mod, bool is_postpone);
+bool arduboy_avr_button_event(arduboy_avr_t *mod, enum button_e btn_e, bool pressed);
+int arduboy_avr_loop(arduboy_avr_t *mod, void *framebuffer, enum framebuffer_e format);
+void arduboy_avr_invalidate_screen(arduboy_avr_t *mod);
+bool arduboy_avr_get_led_state(arduboy_avr_t *mod, int *leds);
+bool arduboy_avr_get_timing(arduboy_avr_t *mod, int *timing);
+enum cpu_state_e arduboy_avr_get_cpu_state(arduboy_avr_t *mod);
+int arduboy_avr_get_state_size(arduboy_avr_t *mod);
+bool arduboy_avr_save_state(arduboy_avr_t *mod, uint8_t *p_state);
+bool arduboy_avr_load_state(arduboy_avr_t *mod, const uint8_t *p_state, int size);
+void arduboy_avr_teardown(arduboy_avr_t *mod);
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Host benchmark of the simavr core driven by arduboy_avr_loop() (see "make bench").
+ *
+ * Usage: arduboy_bench [-c cycles] [-s sample_interval] roms.hex...
+ *
+ * Each ROM runs twice for the given number of emulated cycles. The first pass measures the plain
+ * throughput. The second pass times the stages of each sampled step of simavr, which are hooked
+ * with the linker option --wrap, so the run loop of simavr itself is not modified:
+ *   opcode     avr_run_one()
+ *   timers     avr_cycle_timer_process(), including the callbacks of peripherals
+ *   irq        avr_service_interrupts()
+ * The sampled times include the cost of reading the clock, so compare them relatively.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <sim_avr.h>
+#include <sim_core.h>
+#include <sim_cycle_timers.h>
+#include <sim_interrupts.h>
+
+#include "arduboy_avr.h"
+
+#define DEFAULT_CYCLES (16000000LL * 10) // 10 seconds in emulated time
+#define DEFAULT_SAMPLE_INTERVAL (64)
+
+enum stage_e {
+	STAGE_OPCODE = 0,
+	STAGE_TIMERS,
+	STAGE_IRQ,
+	STAGE_COUNT,
+};
+
+static const char *stage_names[STAGE_COUNT] = { "opcode", "timers", "irq" };
+
+static struct profile {
+	bool enabled, sampling;
+	unsigned int sample_interval;
+	long long instructions;
+	long long steps;
+	long long sampled_steps;
+	long long nanos[STAGE_COUNT];
+} profile;
+
+/*------------------------------------------------------------------------------------------------*/
+
+static long long get_nanos(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (long long) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+avr_flashaddr_t __real_avr_run_one(avr_t *avr);
+avr_cycle_count_t __real_avr_cycle_timer_process(avr_t *avr);
+void __real_avr_service_interrupts(avr_t *avr);
+
+avr_flashaddr_t __wrap_avr_run_one(avr_t *avr)
+{
+	profile.instructions++;
+	if (!profile.sampling) {
+		return __real_avr_run_one(avr);
+	}
+	long long start = get_nanos();
+	avr_flashaddr_t new_pc = __real_avr_run_one(avr);
+	profile.nanos[STAGE_OPCODE] += get_nanos() - start;
+	return new_pc;
+}
+
+avr_cycle_count_t __wrap_avr_cycle_timer_process(avr_t *avr)
+{
+	if (!profile.sampling) {
+		return __real_avr_cycle_timer_process(avr);
+	}
+	long long start = get_nanos();
+	avr_cycle_count_t sleep = __real_avr_cycle_timer_process(avr);
+	profile.nanos[STAGE_TIMERS] += get_nanos() - start;
+	return sleep;
+}
+
+/* Called at the end of every step, so this decides whether the next step is sampled */
+void __wrap_avr_service_interrupts(avr_t *avr)
+{
+	if (profile.sampling) {
+		long long start = get_nanos();
+		__real_avr_service_interrupts(avr);
+		profile.nanos[STAGE_IRQ] += get_nanos() - start;
+		profile.sampled_steps++;
+	} else {
+		__real_avr_service_interrupts(avr);
+	}
+	profile.steps++;
+	profile.sampling = profile.enabled && (profile.steps % profile.sample_interval) == 0;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+struct result {
+	long long cycles;
+	long long frames;
+	long long nanos;
+	bool is_failed;
+};
+
+static bool run_rom(const char *path, long long target_cycles, struct result *result)
+{
+	memset(result, 0, sizeof(*result));
+	arduboy_avr_t *mod = arduboy_avr_create();
+	if (!mod) {
+		return false;
+	}
+	if (arduboy_avr_setup(mod, path, false) < 0) {
+		arduboy_avr_destroy(mod);
+		return false;
+	}
+
+	int timing[TIMING_COUNT];
+	long long start = get_nanos();
+	while (result->cycles < target_cycles) {
+		/* No framebuffer, so that only the emulation is measured */
+		if (arduboy_avr_loop(mod, NULL, FRAMEBUFFER_PACKED) < 0) {
+			result->is_failed = true;
+			break;
+		}
+		arduboy_avr_get_timing(mod, timing);
+		result->cycles += timing[TIMING_CYCLES];
+		result->frames++;
+	}
+	result->nanos = get_nanos() - start;
+
+	arduboy_avr_teardown(mod);
+	arduboy_avr_destroy(mod);
+	return true;
+}
+
+static void print_usage(const char *name)
+{
+	fprintf(stderr, "Usage: %s [-c cycles] [-s sample_interval] roms.hex...\n", name);
+}
+
+int main(int argc, char *argv[])
+{
+	long long target_cycles = DEFAULT_CYCLES;
+	profile.sample_interval = DEFAULT_SAMPLE_INTERVAL;
+	int i, stage, rom_count = 0;
+	for (i = 1; i < argc; i++) {
+		if (strcmp(argv[i], "-c") == 0 && i + 1 < argc) {
+			target_cycles = atoll(argv[++i]);
+		} else if (strcmp(argv[i], "-s") == 0 && i + 1 < argc) {
+			profile.sample_interval = atoi(argv[++i]);
+			if (profile.sample_interval == 0) {
+				profile.sample_interval = 1;
+			}
+		} else {
+			argv[++rom_count] = argv[i];
+		}
+	}
+	if (rom_count == 0) {
+		print_usage(argv[0]);
+		return 2;
+	}
+
+	int failures = 0;
+	for (i = 1; i <= rom_count; i++) {
+		const char *path = argv[i];
+		struct result result;
+
+		/* Pass 1: plain throughput */
+		profile.instructions = 0;
+		profile.steps = 0;
+		if (!run_rom(path, target_cycles, &result)) {
+			printf("%s: failed to load\n", path);
+			failures++;
+			continue;
+		}
+		long long instructions = profile.instructions;
+		printf("%s%s\n", path, (result.is_failed) ? " (crashed or done)" : "");
+		printf("  cycles %lld  frames %lld  %.3f s\n",
+				result.cycles, result.frames, result.nanos / 1e9);
+		if (result.cycles > 0 && result.nanos > 0) {
+			printf("  %.2f ns/cycle  %.2f MHz  %.2f M instructions/s  %.2f cycles/instruction\n",
+					(double) result.nanos / result.cycles,
+					result.cycles * 1e3 / result.nanos,
+					instructions * 1e3 / result.nanos,
+					(instructions > 0) ? (double) result.cycles / instructions : 0.0);
+		}
+		if (result.is_failed) {
+			failures++;
+		}
+		if (instructions == 0 && result.cycles > 0) {
+			/* simavr calls the stages from the same object file, which --wrap can't hook */
+			printf("  stages are not hooked, so no breakdown\n");
+			continue;
+		}
+
+		/* Pass 2: breakdown by stage, from one in every sample_interval steps */
+		profile.enabled = true;
+		profile.sampling = false;
+		profile.instructions = 0;
+		profile.steps = 0;
+		profile.sampled_steps = 0;
+		memset(profile.nanos, 0, sizeof(profile.nanos));
+		run_rom(path, target_cycles, &result);
+		profile.enabled = false;
+		profile.sampling = false;
+		if (profile.sampled_steps == 0) {
+			continue;
+		}
+		long long sampled_nanos = 0;
+		for (stage = 0; stage < STAGE_COUNT; stage++) {
+			sampled_nanos += profile.nanos[stage];
+		}
+		printf("  %lld steps, %lld sampled\n", profile.steps, profile.sampled_steps);
+		for (stage = 0; stage < STAGE_COUNT; stage++) {
+			printf("  %-8s %6.2f ns/step  %5.1f%%\n", stage_names[stage],
+					(double) profile.nanos[stage] / profile.sampled_steps,
+					(sampled_nanos > 0) ? profile.nanos[stage] * 100.0 / sampled_nanos : 0.0);
+		}
+	}
+	return (failures > 0) ? 1 : 0;
+}
@@ -21,69 +21,215 @@ extern "C" {
 #define com_obnsoft_arduboyemu_Native_BUTTON_B 5L
 #undef com_obnsoft_arduboyemu_Native_BUTTON_MAX
 #define com_obnsoft_arduboyemu_Native_BUTTON_MAX 6L
+#undef com_obnsoft_arduboyemu_Native_LOOP_FAILED
+#define com_obnsoft_arduboyemu_Native_LOOP_FAILED -1L
+#undef com_obnsoft_arduboyemu_Native_FLASH_SIZE
+#define com_obnsoft_arduboyemu_Native_FLASH_SIZE 32768L
+#undef com_obnsoft_arduboyemu_Native_CPU_STATE_NONE
+#define com_obnsoft_arduboyemu_Native_CPU_STATE_NONE 0L
+#undef com_obnsoft_arduboyemu_Native_CPU_STATE_RUNNING
+#define com_obnsoft_arduboyemu_Native_CPU_STATE_RUNNING 1L
+#undef com_obnsoft_arduboyemu_Native_CPU_STATE_SLEEPING
+#define com_obnsoft_arduboyemu_Native_CPU_STATE_SLEEPING 2L
+#undef com_obnsoft_arduboyemu_Native_CPU_STATE_DONE
+#define com_obnsoft_arduboyemu_Native_CPU_STATE_DONE 3L
+#undef com_obnsoft_arduboyemu_Native_CPU_STATE_CRASHED
+#define com_obnsoft_arduboyemu_Native_CPU_STATE_CRASHED 4L
+#undef com_obnsoft_arduboyemu_Native_FRAMEBUFFER_ARGB
+#define com_obnsoft_arduboyemu_Native_FRAMEBUFFER_ARGB 0L
+#undef com_obnsoft_arduboyemu_Native_FRAMEBUFFER_PACKED
+#define com_obnsoft_arduboyemu_Native_FRAMEBUFFER_PACKED 1L
+#undef com_obnsoft_arduboyemu_Native_PACKED_FLAGS
+#define com_obnsoft_arduboyemu_Native_PACKED_FLAGS 1024L
+#undef com_obnsoft_arduboyemu_Native_PACKED_CONTRAST
+#define com_obnsoft_arduboyemu_Native_PACKED_CONTRAST 1025L
+#undef com_obnsoft_arduboyemu_Native_PACKED_SIZE
+#define com_obnsoft_arduboyemu_Native_PACKED_SIZE 1028L
+#undef com_obnsoft_arduboyemu_Native_PACKED_FLAG_DISPLAY_ON
+#define com_obnsoft_arduboyemu_Native_PACKED_FLAG_DISPLAY_ON 1L
+#undef com_obnsoft_arduboyemu_Native_PACKED_FLAG_INVERTED
+#define com_obnsoft_arduboyemu_Native_PACKED_FLAG_INVERTED 2L
+#undef com_obnsoft_arduboyemu_Native_PACKED_FLAG_FLIP_X
+#define com_obnsoft_arduboyemu_Native_PACKED_FLAG_FLIP_X 4L
+#undef com_obnsoft_arduboyemu_Native_PACKED_FLAG_FLIP_Y
+#define com_obnsoft_arduboyemu_Native_PACKED_FLAG_FLIP_Y 8L
+#undef com_obnsoft_arduboyemu_Native_STATUS_LED_RED
+#define com_obnsoft_arduboyemu_Native_STATUS_LED_RED 0L
+#undef com_obnsoft_arduboyemu_Native_STATUS_LED_GREEN
+#define com_obnsoft_arduboyemu_Native_STATUS_LED_GREEN 1L
+#undef com_obnsoft_arduboyemu_Native_STATUS_LED_BLUE
+#define com_obnsoft_arduboyemu_Native_STATUS_LED_BLUE 2L
+#undef com_obnsoft_arduboyemu_Native_STATUS_LED_RX
+#define com_obnsoft_arduboyemu_Native_STATUS_LED_RX 3L
+#undef com_obnsoft_arduboyemu_Native_STATUS_LED_TX
+#define com_obnsoft_arduboyemu_Native_STATUS_LED_TX 4L
+#undef com_obnsoft_arduboyemu_Native_STATUS_RUN_NANOS
+#define com_obnsoft_arduboyemu_Native_STATUS_RUN_NANOS 5L
+#undef com_obnsoft_arduboyemu_Native_STATUS_RENDER_NANOS
+#define com_obnsoft_arduboyemu_Native_STATUS_RENDER_NANOS 6L
+#undef com_obnsoft_arduboyemu_Native_STATUS_CYCLES
+#define com_obnsoft_arduboyemu_Native_STATUS_CYCLES 7L
+#undef com_obnsoft_arduboyemu_Native_STATUS_MAX
+#define com_obnsoft_arduboyemu_Native_STATUS_MAX 8L
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    create
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_obnsoft_arduboyemu_Native_create
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    destroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_destroy
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    readHexFile
+ * Signature: (Ljava/lang/String;[B)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_readHexFile
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setup
- * Signature: (Ljava/lang/String;Z)Z
+ * Signature: (JLjava/lang/String;Z)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setup
-  (JNIEnv *, jclass, jstring, jboolean);
+  (JNIEnv *, jclass, jlong, jstring, jboolean);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    setupFlash
+ * Signature: (J[BIZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setupFlash
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jboolean);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    reset
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_reset
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom
-  (JNIEnv *, jclass, jbyteArray);
+  (JNIEnv *, jclass, jlong, jbyteArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom
-  (JNIEnv *, jclass, jbyteArray);
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getStateSize
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getStateSize
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    saveState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_saveState
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    loadState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loadState
+  (JNIEnv *, jclass, jlong, jbyteArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setRefreshTiming
- * Signature: (Z)Z
+ * Signature: (JZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setRefreshTiming
-  (JNIEnv *, jclass, jboolean);
+  (JNIEnv *, jclass, jlong, jboolean);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    buttonEvent
- * Signature: (IZ)Z
+ * Signature: (JIZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_buttonEvent
-  (JNIEnv *, jclass, jint, jboolean);
+  (JNIEnv *, jclass, jlong, jint, jboolean);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    attachFramebuffer
+ * Signature: (JLjava/nio/ByteBuffer;I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_attachFramebuffer
+  (JNIEnv *, jclass, jlong, jobject, jint);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    attachStatus
+ * Signature: (JLjava/nio/ByteBuffer;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_attachStatus
+  (JNIEnv *, jclass, jlong, jobject);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    loop
- * Signature: ([I)Z
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_loop
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    step
+ * Signature: (JI)I
  */
-JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loop
-  (JNIEnv *, jclass, jintArray);
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_step
+  (JNIEnv *, jclass, jlong, jint);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getLedState
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState
-  (JNIEnv *, jclass, jintArray);
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getCpuState
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getCpuState
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    teardown
- * Signature: ()V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_teardown
-  (JNIEnv *, jclass);
+  (JNIEnv *, jclass, jlong);
 
 #ifdef __cplusplus
 }
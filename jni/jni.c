@@ -18,38 +18,167 @@
 
 
 #include <stdio.h>
+#include <stdlib.h>
 #include "arduboy_avr.h"
 #include "com_obnsoft_arduboyemu_Native.h"
 
 #define EEPROM_SIZE 1024
 
+/* What a handle of Java side points to */
+struct native_instance {
+    arduboy_avr_t *mod;
+    jobject framebuffer_ref;
+    void *framebuffer;
+    enum framebuffer_e framebuffer_format;
+    jobject status_ref;
+    int *status;
+};
+
+static inline struct native_instance *get_instance(jlong handle)
+{
+    return (struct native_instance *) (intptr_t) handle;
+}
+
+static void *attach_direct_buffer(JNIEnv *env, jobject jbuffer, jobject *p_ref, jlong min_capacity)
+{
+    if (*p_ref) {
+        (*env)->DeleteGlobalRef(env, *p_ref);
+        *p_ref = NULL;
+    }
+    if (!jbuffer) {
+        return NULL;
+    }
+
+    /* Native side writes straight into the direct buffer, so keep it alive while attached */
+    void *p_buffer = (*env)->GetDirectBufferAddress(env, jbuffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (!p_buffer || capacity < min_capacity) {
+        return NULL;
+    }
+    *p_ref = (*env)->NewGlobalRef(env, jbuffer);
+    return p_buffer;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    create
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_obnsoft_arduboyemu_Native_create(
+        JNIEnv *env, jclass obj) {
+    struct native_instance *instance =
+            (struct native_instance *) calloc(1, sizeof(struct native_instance));
+    if (!instance) {
+        return 0;
+    }
+    instance->mod = arduboy_avr_create();
+    if (!instance->mod) {
+        free(instance);
+        return 0;
+    }
+    instance->framebuffer_format = FRAMEBUFFER_ARGB;
+    return (jlong) (intptr_t) instance;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    destroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_destroy(
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    if (instance) {
+        arduboy_avr_destroy(instance->mod);
+        attach_direct_buffer(env, NULL, &instance->framebuffer_ref, 0);
+        attach_direct_buffer(env, NULL, &instance->status_ref, 0);
+        free(instance);
+    }
+}
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setup
- * Signature: (Ljava/lang/String;Z)Z
+ * Signature: (JLjava/lang/String;Z)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setup(
-        JNIEnv *env, jclass obj, jstring js_path, jboolean is_tuned) {
+        JNIEnv *env, jclass obj, jlong handle, jstring js_path, jboolean is_tuned) {
     int ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
     const char *path = (*env)->GetStringUTFChars(env, js_path, NULL);
-    ret = arduboy_avr_setup(path, is_tuned);
+    ret = arduboy_avr_setup(instance->mod, path, is_tuned);
     (*env)->ReleaseStringUTFChars(env, js_path, path);
     return !ret;
 }
 
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    readHexFile
+ * Signature: (Ljava/lang/String;[B)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_readHexFile(
+        JNIEnv *env, jclass obj, jstring js_path, jbyteArray jbyte_array) {
+    if ((*env)->GetArrayLength(env, jbyte_array) < FLASH_SIZE) {
+        return -1;
+    }
+    const char *path = (*env)->GetStringUTFChars(env, js_path, NULL);
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, NULL);
+    int ret = arduboy_avr_read_hex(path, (uint8_t *) p_array);
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, (ret >= 0) ? 0 : JNI_ABORT);
+    (*env)->ReleaseStringUTFChars(env, js_path, path);
+    return ret;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    setupFlash
+ * Signature: (J[BIZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setupFlash(
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array, jint boot_base,
+        jboolean is_tuned) {
+    struct native_instance *instance = get_instance(handle);
+    if (!instance || (*env)->GetArrayLength(env, jbyte_array) < FLASH_SIZE) {
+        return JNI_FALSE;
+    }
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, NULL);
+    int ret = arduboy_avr_setup_flash(instance->mod, (const uint8_t *) p_array, boot_base,
+            is_tuned);
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, JNI_ABORT);
+    return !ret;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    reset
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_reset(
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    return instance && arduboy_avr_reset(instance->mod);
+}
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom(
-        JNIEnv *env, jclass obj, jbyteArray jbyte_array) {
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
     jboolean ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
     jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jbyte_array);
 
     if (array_len >= EEPROM_SIZE) {
-        ret = arduboy_avr_get_eeprom((char *) p_array);
+        ret = arduboy_avr_get_eeprom(instance->mod, (char *) p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -61,16 +190,57 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom(
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom(
-        JNIEnv *env, jclass obj, jbyteArray jbyte_array) {
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
     jboolean ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
     jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jbyte_array);
 
     if (array_len >= EEPROM_SIZE) {
-        ret = arduboy_avr_set_eeprom((const char *) p_array);
+        ret = arduboy_avr_set_eeprom(instance->mod, (const char *) p_array);
+    } else {
+        ret = JNI_FALSE;
+    }
+
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, 0);
+    return ret;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getStateSize
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getStateSize(
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    return (instance) ? arduboy_avr_get_state_size(instance->mod) : -1;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    saveState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_saveState(
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
+    jboolean ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
+    int array_len = (*env)->GetArrayLength(env, jbyte_array);
+    int state_size = arduboy_avr_get_state_size(instance->mod);
+
+    if (state_size >= 0 && array_len >= state_size) {
+        ret = arduboy_avr_save_state(instance->mod, (uint8_t *) p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -79,61 +249,144 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom(
     return ret;
 }
 
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    loadState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loadState(
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
+    jboolean ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
+    int array_len = (*env)->GetArrayLength(env, jbyte_array);
+
+    ret = arduboy_avr_load_state(instance->mod, (const uint8_t *) p_array, array_len);
+
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, JNI_ABORT);
+    return ret;
+}
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setRefreshTiming
- * Signature: (Z)Z
+ * Signature: (JZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setRefreshTiming(
-        JNIEnv *env, jclass obj, jboolean is_postpone) {
-    jboolean ret = arduboy_avr_set_refresh_timing(is_postpone);
-    return ret;
+        JNIEnv *env, jclass obj, jlong handle, jboolean is_postpone) {
+    struct native_instance *instance = get_instance(handle);
+    return instance && arduboy_avr_set_refresh_timing(instance->mod, is_postpone);
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    buttonEvent
- * Signature: (IZ)Z
+ * Signature: (JIZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_buttonEvent(
-        JNIEnv *env, jclass obj, jint key, jboolean is_press) {
-    return arduboy_avr_button_event((enum button_e) key, is_press);
+        JNIEnv *env, jclass obj, jlong handle, jint key, jboolean is_press) {
+    struct native_instance *instance = get_instance(handle);
+    return instance && arduboy_avr_button_event(instance->mod, (enum button_e) key, is_press);
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
- * Method:    loop
- * Signature: ([I)Z
+ * Method:    attachFramebuffer
+ * Signature: (JLjava/nio/ByteBuffer;I)Z
  */
-JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loop(
-        JNIEnv *env, jclass obj, jintArray jint_array) {
-    jboolean ret;
-    jint *p_array = (*env)->GetIntArrayElements(env, jint_array, &ret);
-    int array_len = (*env)->GetArrayLength(env, jint_array);
-
-    if (array_len >= OLED_WIDTH_PX * OLED_HEIGHT_PX) {
-        ret = arduboy_avr_loop(p_array);
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_attachFramebuffer(
+        JNIEnv *env, jclass obj, jlong handle, jobject jbuffer, jint format) {
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
+    jlong size;
+    if (format == FRAMEBUFFER_PACKED) {
+        size = PACKED_SIZE;
     } else {
-        ret = JNI_FALSE;
+        format = FRAMEBUFFER_ARGB;
+        size = OLED_WIDTH_PX * OLED_HEIGHT_PX * sizeof(int);
     }
+    instance->framebuffer =
+            attach_direct_buffer(env, jbuffer, &instance->framebuffer_ref, size);
+    instance->framebuffer_format = (enum framebuffer_e) format;
+    arduboy_avr_invalidate_screen(instance->mod);
+    return !jbuffer || instance->framebuffer;
+}
 
-    (*env)->ReleaseIntArrayElements(env, jint_array, p_array, 0);
-    return ret;
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    attachStatus
+ * Signature: (JLjava/nio/ByteBuffer;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_attachStatus(
+        JNIEnv *env, jclass obj, jlong handle, jobject jbuffer) {
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
+    instance->status = attach_direct_buffer(env, jbuffer, &instance->status_ref,
+            STATUS_COUNT * sizeof(int));
+    return !jbuffer || instance->status;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    loop
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_loop(
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return -1;
+    }
+    return arduboy_avr_loop(instance->mod, instance->framebuffer, instance->framebuffer_format);
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    step
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_step(
+        JNIEnv *env, jclass obj, jlong handle, jint button_mask) {
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return -1;
+    }
+    arduboy_avr_t *mod = instance->mod;
+    for (int btn = 0; btn < BTN_COUNT; btn++) {
+        arduboy_avr_button_event(mod, (enum button_e) btn, (button_mask >> btn) & 1);
+    }
+    int dirty_pages = arduboy_avr_loop(mod, instance->framebuffer, instance->framebuffer_format);
+    if (dirty_pages >= 0 && instance->status) {
+        arduboy_avr_get_led_state(mod, instance->status + STATUS_LED);
+        arduboy_avr_get_timing(mod, instance->status + STATUS_TIMING);
+    }
+    return dirty_pages;
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getLedState
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState(
-        JNIEnv *env, jclass obj, jintArray jint_array) {
+        JNIEnv *env, jclass obj, jlong handle, jintArray jint_array) {
     jboolean ret;
+    struct native_instance *instance = get_instance(handle);
+    if (!instance) {
+        return JNI_FALSE;
+    }
     jint *p_array = (*env)->GetIntArrayElements(env, jint_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jint_array);
 
     if (array_len >= LED_COUNT) {
-        ret = arduboy_avr_get_led_state(p_array);
+        ret = arduboy_avr_get_led_state(instance->mod, p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -142,13 +395,27 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState(
     return ret;
 }
 
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getCpuState
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getCpuState(
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    return (instance) ? arduboy_avr_get_cpu_state(instance->mod) : CPU_STATE_NONE;
+}
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    teardown
- * Signature: ()V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_teardown(
-        JNIEnv *env, jclass obj) {
-    arduboy_avr_teardown();
+        JNIEnv *env, jclass obj, jlong handle) {
+    struct native_instance *instance = get_instance(handle);
+    if (instance) {
+        arduboy_avr_teardown(instance->mod);
+    }
 }
 
@@ -27,9 +27,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
-import com.obnsoft.arduboyemu.Utils.CancelCallback;
+import com.obnsoft.arduboyemu.StreamUtils.CancelCallback;
 
 import android.content.Context;
 import android.graphics.Color;
@@ -44,18 +48,11 @@ public class ArduboyEmulator {
     public static final int SCREEN_HEIGHT = 64;
     public static final int EEPROM_SIZE = 1024;
 
-    private static final int PIXELS_SIZE = SCREEN_WIDTH * SCREEN_HEIGHT;
-
-    private static final int LED_RED    = 0;
-    private static final int LED_GREEN  = 1;
-    private static final int LED_BLUE   = 2;
-    private static final int LED_RX     = 3;
-    private static final int LED_TX     = 4;
-    private static final int LEDS_SIZE  = 5;
-
     private static final int ONE_SECOND = 1000;
+    private static final long ONE_SECOND_NANOS = 1000000000L;
 
     private static final String EEPROM_FILE_NAME = "eeprom.bin";
+    private static final String FLASH_CACHE_DIR_NAME = "flash";
     private static final CancelCallback EEPROM_CALLBACK = new CancelCallback() {
         @Override
         public boolean isCencelled(long length) {
@@ -63,6 +60,26 @@ public class ArduboyEmulator {
         }
     };
 
+    public static final int STATE_SLOT_MAX = 3;
+    private static final String STATE_FILE_NAME_FORMAT = "state_%s_%d.bin";
+    private static final int STATE_KEY_BYTES = 8;
+    private static final String RESUME_HEX_FILE_NAME = "resume.hex";
+    private static final String RESUME_STATE_FILE_NAME = "resume.bin";
+    private static final String RESUME_WORK_FILE_NAME = "resume.tmp";
+    private static final int STATE_REQUEST_NONE = 0;
+    private static final int STATE_REQUEST_SAVE = 1;
+    private static final int STATE_REQUEST_LOAD = 2;
+
+    private static final int REWIND_BUFFER_BYTES = 2 * 1024 * 1024;
+    private static final int REWIND_FRAMES_MAX = 3600;
+    private static final int REWIND_KEY_INTERVAL = 30;
+    private static final int REWIND_CAPTURE_INTERVAL = 2; // in frames
+
+    public static final int MOVIE_NONE = 0;
+    public static final int MOVIE_RECORDING = 1;
+    public static final int MOVIE_REPLAYING = 2;
+    private static final String MOVIE_FILE_NAME_FORMAT = "yyyyMMddkkmmss'" + InputMovie.EXT_MOVIE + "'";
+
     private static final String CAPTURE_DIR_NAME = "ArbyEmulator";
     private static final String CAPTURE_WORK_FILE_NAME = "temp.gif";
     private static final String CAPTURE_FILE_NAME_FORMAT = "yyyyMMddkkmmss'.gif'";
@@ -75,14 +92,35 @@ public class ArduboyEmulator {
     private EmulatorScreenView  mEmulatorView;
 
     private Thread      mEmulationThread;
-    private boolean     mIsEmulationAvailable;
     private boolean     mIsEmulating;
     private boolean     mIsCharging;
     private boolean     mIsOneShot;
     private boolean     mIsCapturing;
-    private int         mFps;
+    private boolean     mIsScreenRefreshRequested;
+    private boolean     mIsStatsOverlay;
+    private boolean     mIsStatsShown;
+    private boolean     mIsFrameSkip;
+    private boolean     mIsRewinding;
+    private int         mStateRequest;
+    private int         mStateSlot;
+    private String      mStateKey;
+    private String      mPath;
+    private byte[]      mHexHash;
+    private InputMovie  mMovie;
+    private int         mMovieMode;
+    private boolean     mIsEepromDetached;
+    private boolean     mIsResetRequested;
+    private long        mHexFileLength;
+    private long        mHexFileModified;
+    private Object      mResumeLock = new Object();
+    private int         mResumeSequence;    // guarded by mResumeLock
+    private FrameScheduler  mScheduler;
     private byte[]      mEeprom;
+    private EmulatorCore    mCore;
     private GifEncoder  mGifEncoder;
+    private GifCaptureThread    mGifCapture;
+    private FrameStats  mFrameStats;
+    private RewindBuffer    mRewindBuffer;
 
     /*-----------------------------------------------------------------------*/
     /*                              Emulation                                */
@@ -91,7 +129,16 @@ public class ArduboyEmulator {
     public ArduboyEmulator(MyApplication app) {
         mApp = app;
         loadEeprom();
+        mCore = new EmulatorCore();
+        mCore.setFlashImageCache(new FlashImageCache(
+                new File(app.getCacheDir(), FLASH_CACHE_DIR_NAME)));
         mGifEncoder = new GifEncoder();
+        mGifCapture = new GifCaptureThread();
+        mScheduler = new FrameScheduler();
+        mScheduler.setFps(app.getEmulationFps());
+        mFrameStats = new FrameStats();
+        mRewindBuffer = new RewindBuffer(REWIND_BUFFER_BYTES, REWIND_FRAMES_MAX,
+                REWIND_KEY_INTERVAL);
     }
 
     public boolean isEmulating() {
@@ -99,33 +146,151 @@ public class ArduboyEmulator {
     }
 
     public void setFps(int fps) {
-        mFps = fps;
+        mScheduler.setFps(fps);
+    }
+
+    public synchronized void setFrameScheduler(FrameScheduler scheduler) {
+        if (mEmulationThread != null) {
+            stopEmulation();
+        }
+        scheduler.setFps(mScheduler.getFps());
+        mScheduler = scheduler;
     }
 
     public synchronized void setCharging(boolean isCharging) {
         mIsCharging = isCharging;
         if (!mIsEmulating && mEmulatorView != null) {
             mEmulatorView.updateLed(Color.BLACK, false, false, mIsCharging);
-            mEmulatorView.postInvalidate();
+            mEmulatorView.postFrame(null, 0);
+        }
+    }
+
+    public boolean setRefreshTiming(boolean isPostpone) {
+        return mCore.setRefreshTiming(isPostpone);
+    }
+
+    /**
+     * Skip presenting frames while the view is still drawing the previous one.
+     * The emulation itself keeps running at the target rate.
+     */
+    public void setFrameSkip(boolean isFrameSkip) {
+        mIsFrameSkip = isFrameSkip;
+    }
+
+    /**
+     * @param isDrop true to drop frames rather than slow down the emulation
+     *               when the GIF encoder can't keep up
+     */
+    public void setCaptureDropFrames(boolean isDrop) {
+        mGifCapture.setPolicy((isDrop) ? GifCaptureThread.POLICY_DROP
+                : GifCaptureThread.POLICY_BLOCK);
+    }
+
+    public synchronized void setStatsOverlay(boolean isStatsOverlay) {
+        mIsStatsOverlay = isStatsOverlay;
+        if (!isStatsOverlay && mEmulatorView != null) {
+            mEmulatorView.clearStats();
         }
     }
 
+    /**
+     * While rewinding, the emulation goes back through the recent states
+     * instead of running forward.
+     */
+    public void setRewinding(boolean isRewinding) {
+        mIsRewinding = isRewinding;
+    }
+
+    public boolean isRewinding() {
+        return mIsRewinding;
+    }
+
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    public String dumpFrameStats() {
+        return mFrameStats.dump();
+    }
+
     public synchronized void bindEmulatorView(EmulatorScreenView emulatorView) {
         mEmulatorView = emulatorView;
+        mIsScreenRefreshRequested = true;
         setCharging(mIsCharging);
     }
 
     public synchronized boolean initializeEmulation(String path) {
-        if (mIsEmulationAvailable) {
+        return initializeEmulation(path, mApp.getEmulationTuning(), mApp.getEmulationPostRefresh());
+    }
+
+    private boolean initializeEmulation(String path, boolean isTuned, boolean isPostRefresh) {
+        if (mCore.isAvailable()) {
             finishEmulation();
         }
-        mIsEmulationAvailable = Native.setup(path, mApp.getEmulationTuning());
-        Native.setRefreshTiming(mApp.getEmulationPostRefresh());
-        return mIsEmulationAvailable;
+        mMovieMode = MOVIE_NONE;
+        mIsEepromDetached = false;
+        mIsResetRequested = false;
+        if (mCore.load(path, isTuned)) {
+            mCore.setRefreshTiming(isPostRefresh);
+            mRewindBuffer.clear();
+            mHexHash = mCore.getHexHash();
+            File hexFile = new File(path);
+            mHexFileLength = hexFile.length();
+            mHexFileModified = hexFile.lastModified();
+            mStateKey = generateStateKey(mHexHash);
+            mPath = path;
+            keepResumeHexFile(path);
+        }
+        return mCore.isAvailable();
+    }
+
+    /**
+     * Reset the running program without loading it again.
+     *
+     * @return false if the program file has been modified, so it should be
+     *         loaded again by {@link #initializeEmulation(String)}
+     */
+    public synchronized boolean resetEmulation() {
+        if (!mCore.isAvailable() || mPath == null) {
+            return false;
+        }
+        File hexFile = new File(mPath);
+        if (hexFile.length() != mHexFileLength || hexFile.lastModified() != mHexFileModified) {
+            return false;
+        }
+        if (mMovieMode == MOVIE_RECORDING) {
+            stopRecording();
+        }
+        stopReplay();
+        if (mIsEmulating) {
+            mIsResetRequested = true; // the emulation thread resets at the next frame
+            return true;
+        }
+        return mCore.reset();
+    }
+
+    /**
+     * Restore the emulation paused last time, unless another one is available.
+     *
+     * @return the path of the program, or null if nothing is restored
+     */
+    public synchronized String restoreEmulation() {
+        if (mCore.isAvailable()) {
+            return mPath;
+        }
+        File hexFile = new File(mApp.getFilesDir(), RESUME_HEX_FILE_NAME);
+        if (!hexFile.exists() || !initializeEmulation(hexFile.getAbsolutePath())) {
+            return null;
+        }
+        byte[] state = readResumeState();
+        if (state != null && !mCore.loadState(state)) {
+            Utils.showToast(mApp, R.string.messageLoadFailed);
+        }
+        return mPath;
     }
 
     public synchronized boolean startEmulation() {
-        if (!mIsEmulationAvailable) {
+        if (!mCore.isAvailable()) {
             return false;
         }
         if (mEmulationThread != null) {
@@ -135,32 +300,92 @@ public class ArduboyEmulator {
         mEmulationThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                int fps = mFps;
-                int[] pixels = new int[PIXELS_SIZE];
-                int[] leds = new int[LEDS_SIZE];
-                long baseTime = System.currentTimeMillis();
-                long frames = 0;
-
-                Native.setEeprom(mEeprom);
+                FrameScheduler scheduler = mScheduler;
+                FrameStats stats = mFrameStats;
+                EmulatorCore core = mCore;
+                ByteBuffer framebuffer = core.getFramebuffer();
+                RewindBuffer rewindBuffer = mRewindBuffer;
+                byte[] rewindState = new byte[Math.max(core.getStateSize(), 0)];
+                InputMovie movie = mMovie;
+                boolean isPresented = true;
+                int pendingPages = 0;
+                int rewindFrames = 0;
+
+                if (!mIsEepromDetached) {
+                    core.setEeprom(mEeprom);
+                }
+                scheduler.start();
+                stats.reset();
+                long frameTime = System.nanoTime();
+                long statsTime = frameTime;
                 while (mIsEmulating) {
+                    int buttonMask = 0;
                     if (mEmulatorView != null) {
-                        boolean[] buttonState = mEmulatorView.updateButtonState();
-                        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-                            Native.buttonEvent(buttonIdx, buttonState[buttonIdx]);
+                        buttonMask = mEmulatorView.updateButtonState();
+                    }
+                    if (mIsResetRequested) {
+                        mIsResetRequested = false;
+                        core.reset();
+                    }
+                    int movieMode = mMovieMode;
+                    if (movieMode == MOVIE_REPLAYING) {
+                        buttonMask = movie.nextReplay();
+                        if (buttonMask == InputMovie.REPLAY_END) {
+                            buttonMask = 0;
+                            mMovieMode = MOVIE_NONE;
+                            postToast(handler, R.string.messageReplayEnd);
                         }
+                    } else if (movieMode == MOVIE_RECORDING) {
+                        movie.record(buttonMask);
                     }
-                    Native.loop(pixels);
-                    Native.getLedState(leds);
-                    if (mEmulatorView != null) {
-                        mEmulatorView.updateScreen(pixels);
-                        mEmulatorView.updateLed(
-                                Color.rgb(leds[LED_RED], leds[LED_GREEN], leds[LED_BLUE]),
-                                (leds[LED_RX] != 0), (leds[LED_TX] != 0), mIsCharging);
-                        mEmulatorView.postInvalidate();
+                    int dirtyPages;
+                    long rewindNanos = 0;
+                    if (mIsRewinding && movieMode == MOVIE_NONE) {
+                        long rewindTime = System.nanoTime();
+                        boolean isLoaded = rewindBuffer.pop(rewindState)
+                                && core.loadState(rewindState);
+                        rewindNanos = System.nanoTime() - rewindTime;
+                        dirtyPages = (isLoaded) ? core.step(0) : 0;
+                        rewindFrames = 0;
+                    } else {
+                        dirtyPages = core.step(buttonMask);
+                        if (++rewindFrames >= REWIND_CAPTURE_INTERVAL) {
+                            long rewindTime = System.nanoTime();
+                            if (core.saveState(rewindState)) {
+                                rewindBuffer.push(rewindState);
+                            }
+                            rewindNanos = System.nanoTime() - rewindTime;
+                            rewindFrames = 0;
+                        }
+                    }
+                    long stepTime = System.nanoTime();
+                    if (dirtyPages == Native.LOOP_FAILED) {
+                        dirtyPages = 0;
+                    }
+                    if (mIsScreenRefreshRequested) {
+                        mIsScreenRefreshRequested = false;
+                        dirtyPages = PackedScreen.ALL_PAGES;
+                    }
+                    pendingPages |= dirtyPages;
+                    if (isPresented && mIsFrameSkip && mEmulatorView != null
+                            && !mEmulatorView.isReadyForFrame()) {
+                        isPresented = false;
+                    }
+                    if (isPresented && mEmulatorView != null) {
+                        dirtyPages = pendingPages;
+                        pendingPages = 0;
+                        mEmulatorView.updateLed(core.getLedRgb(),
+                                (core.getStatus(Native.STATUS_LED_RX) != 0),
+                                (core.getStatus(Native.STATUS_LED_TX) != 0), mIsCharging);
+                        mEmulatorView.postFrame(framebuffer, dirtyPages);
+                    }
+                    long presentTime = System.nanoTime();
+                    if (mStateRequest != STATE_REQUEST_NONE) {
+                        processStateRequest(core, handler);
                     }
                     if (mIsOneShot) {
                         final File file = generateCaptureFile();
-                        if (mGifEncoder.oneShot(file, pixels)) {
+                        if (mGifEncoder.oneShot(file, framebuffer)) {
                             handler.post(new Runnable() {
                                 @Override
                                 public void run() {
@@ -171,28 +396,40 @@ public class ArduboyEmulator {
                         mIsOneShot = false;
                     }
                     if (mIsCapturing) {
-                        mGifEncoder.addFrame(pixels);
+                        mGifCapture.addFrame(framebuffer, core.getStatus(Native.STATUS_CYCLES));
                     }
-                    if (++frames >= fps) {
-                        baseTime += ONE_SECOND;
-                        frames = 0;
-                    }
-                    long currentTime = System.currentTimeMillis();
-                    long targetTime = baseTime + frames * ONE_SECOND / fps;
-                    if (mFps == fps && currentTime < targetTime) {
-                        try {
-                            Thread.sleep(targetTime - currentTime);
-                        } catch (InterruptedException e) {
-                            // do nothing
-                        }
-                    } else {
-                        fps = mFps;
-                        baseTime = currentTime;
-                        frames = 0;
+                    long captureTime = System.nanoTime();
+                    boolean wasPresented = isPresented;
+                    isPresented = scheduler.awaitNextFrame();
+                    long endTime = System.nanoTime();
+
+                    /*  Statistics  */
+                    int runNanos = core.getStatus(Native.STATUS_RUN_NANOS);
+                    int renderNanos = core.getStatus(Native.STATUS_RENDER_NANOS);
+                    stats.record(FrameStats.PHASE_RUN, runNanos);
+                    stats.record(FrameStats.PHASE_RENDER, renderNanos);
+                    stats.record(FrameStats.PHASE_JNI,
+                            stepTime - frameTime - runNanos - renderNanos - rewindNanos);
+                    stats.record(FrameStats.PHASE_REWIND, rewindNanos);
+                    stats.record(FrameStats.PHASE_PRESENT, presentTime - stepTime);
+                    stats.record(FrameStats.PHASE_CAPTURE, captureTime - presentTime);
+                    stats.record(FrameStats.PHASE_WAIT, endTime - captureTime);
+                    stats.record(FrameStats.PHASE_FRAME, endTime - frameTime);
+                    stats.commitFrame(core.getStatus(Native.STATUS_CYCLES), wasPresented);
+                    if (mEmulatorView != null && endTime - statsTime >= ONE_SECOND_NANOS) {
+                        updateStatsOverlay(stats, scheduler.isTurbo());
+                        statsTime = endTime;
                     }
+                    frameTime = endTime;
+                }
+                scheduler.stop();
+                if (!mIsEepromDetached) {
+                    core.getEeprom(mEeprom);
+                    saveEeprom();
+                }
+                if (mApp.getResumeOnStart()) {
+                    writeResumeState(core.saveState());
                 }
-                Native.getEeprom(mEeprom);
-                saveEeprom();
             }
         });
         if (mEmulationThread == null) {
@@ -203,6 +440,25 @@ public class ArduboyEmulator {
         return true;
     }
 
+    private void updateStatsOverlay(FrameStats stats, boolean isTurbo) {
+        if (mIsStatsOverlay) {
+            String[] lines = stats.summarize().toLines();
+            if (mIsCapturing) {
+                lines = Arrays.copyOf(lines, lines.length + 1);
+                lines[lines.length - 1] = mGifCapture.getStats().toString();
+            }
+            mEmulatorView.updateStats(lines);
+            mIsStatsShown = true;
+        } else if (isTurbo) {
+            /*  Emulated speed is always shown in turbo mode  */
+            mEmulatorView.updateStats(new String[] { stats.summarize().toLines()[0] });
+            mIsStatsShown = true;
+        } else if (mIsStatsShown) {
+            mEmulatorView.updateStats(null);
+            mIsStatsShown = false;
+        }
+    }
+
     public synchronized void stopEmulation() {
         if (mEmulationThread != null) {
             mIsEmulating = false;
@@ -216,13 +472,195 @@ public class ArduboyEmulator {
     }
 
     public synchronized void finishEmulation() {
-        if (mIsEmulationAvailable) {
+        if (mCore.isAvailable()) {
             stopEmulation();
-            Native.teardown();
-            mIsEmulationAvailable = false;
+            mCore.teardown();
         }
     }
 
+    /*-----------------------------------------------------------------------*/
+    /*                              Save States                              */
+    /*-----------------------------------------------------------------------*/
+
+    public synchronized boolean requestSaveState(int slot) {
+        return requestState(STATE_REQUEST_SAVE, slot);
+    }
+
+    public synchronized boolean requestLoadState(int slot) {
+        if (!getStateFile(slot).exists()) {
+            return false;
+        }
+        return requestState(STATE_REQUEST_LOAD, slot);
+    }
+
+    /**
+     * @return the time when the state was saved, or 0 if the slot is empty
+     */
+    public long getStateSlotTime(int slot) {
+        return (mStateKey != null) ? getStateFile(slot).lastModified() : 0;
+    }
+
+    private boolean requestState(int request, int slot) {
+        if (!mIsEmulating || mStateKey == null || slot < 0 || slot >= STATE_SLOT_MAX) {
+            return false;
+        }
+        mStateSlot = slot;
+        mStateRequest = request;
+        return true;
+    }
+
+    /**
+     * Called from the emulation thread between frames.
+     */
+    private void processStateRequest(EmulatorCore core, Handler handler) {
+        boolean isSave = (mStateRequest == STATE_REQUEST_SAVE);
+        File file = getStateFile(mStateSlot);
+        mStateRequest = STATE_REQUEST_NONE;
+        boolean ret;
+        if (isSave) {
+            byte[] state = core.saveState();
+            ret = (state != null && writeStateFile(file, state));
+        } else if (mMovieMode == MOVIE_NONE) {
+            byte[] state = readStateFile(file);
+            ret = (state != null && core.loadState(state));
+            if (ret) {
+                mIsScreenRefreshRequested = true;
+            }
+        } else {
+            ret = false; // it would break the recorded or replayed inputs
+        }
+        final int stringId = (isSave)
+                ? ((ret) ? R.string.messageSaveSucceeded : R.string.messageSaveFailed)
+                : ((ret) ? R.string.messageLoadSucceeded : R.string.messageLoadFailed);
+        postToast(handler, stringId);
+    }
+
+    private void postToast(Handler handler, final int stringId) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Utils.showToast(mApp, stringId);
+            }
+        });
+    }
+
+    private void keepResumeHexFile(String path) {
+        File hexFile = new File(mApp.getFilesDir(), RESUME_HEX_FILE_NAME);
+        if (hexFile.getAbsolutePath().equals(new File(path).getAbsolutePath())) {
+            return;
+        }
+        synchronized (mResumeLock) {
+            mResumeSequence++;
+            new File(mApp.getFilesDir(), RESUME_STATE_FILE_NAME).delete();
+            try {
+                StreamUtils.transferBytes(new FileInputStream(path), new FileOutputStream(hexFile),
+                        null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                hexFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Compress and write the state in another thread, not to delay pausing.
+     * The state is discarded if a newer state or another program is kept
+     * before it is written.
+     */
+    private void writeResumeState(final byte[] state) {
+        if (state == null) {
+            return;
+        }
+        final int sequence;
+        synchronized (mResumeLock) {
+            sequence = ++mResumeSequence;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mResumeLock) {
+                    if (sequence != mResumeSequence) {
+                        return;
+                    }
+                    File workFile = new File(mApp.getFilesDir(), RESUME_WORK_FILE_NAME);
+                    try {
+                        OutputStream out = new DeflaterOutputStream(new FileOutputStream(workFile));
+                        try {
+                            out.write(state);
+                        } finally {
+                            out.close();
+                        }
+                        // Renaming makes sure that the file is complete.
+                        workFile.renameTo(new File(mApp.getFilesDir(), RESUME_STATE_FILE_NAME));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        workFile.delete();
+                    }
+                }
+            }
+        }).start();
+    }
+
+    private byte[] readResumeState() {
+        synchronized (mResumeLock) {
+            File file = new File(mApp.getFilesDir(), RESUME_STATE_FILE_NAME);
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                StreamUtils.transferBytes(new InflaterInputStream(new FileInputStream(file)), out,
+                        null);
+                return out.toByteArray();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    private File getStateFile(int slot) {
+        return new File(mApp.getFilesDir(), String.format(STATE_FILE_NAME_FORMAT, mStateKey, slot));
+    }
+
+    private boolean writeStateFile(File file, byte[] state) {
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(state);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return false;
+        }
+    }
+
+    private byte[] readStateFile(File file) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            StreamUtils.transferBytes(new FileInputStream(file), out, null);
+            return out.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String generateStateKey(byte[] hash) {
+        if (hash == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STATE_KEY_BYTES; i++) {
+            sb.append(String.format("%02x", hash[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
     /*-----------------------------------------------------------------------*/
     /*                            Control EEPROM                             */
     /*-----------------------------------------------------------------------*/
@@ -243,7 +681,7 @@ public class ArduboyEmulator {
     public void clearEeprom() {
         defaultEeprom();
         if (mIsEmulating) {
-            Native.setEeprom(mEeprom);
+            mCore.setEeprom(mEeprom);
         } else {
             saveEeprom();
         }
@@ -254,7 +692,7 @@ public class ArduboyEmulator {
             boolean ret = inputEeprom(new FileInputStream(new File(path)), false);
             if (ret) {
                 if (mIsEmulating) {
-                    Native.setEeprom(mEeprom);
+                    mCore.setEeprom(mEeprom);
                 } else {
                     saveEeprom();
                 }
@@ -287,7 +725,7 @@ public class ArduboyEmulator {
             throws FileNotFoundException, IOException {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream(EEPROM_SIZE);
-            long length = Utils.transferBytes(in, out, EEPROM_CALLBACK);
+            long length = StreamUtils.transferBytes(in, out, EEPROM_CALLBACK);
             if (length >= EEPROM_SIZE) {
                 mEeprom = out.toByteArray();
                 return true;
@@ -308,7 +746,8 @@ public class ArduboyEmulator {
     }
 
     private boolean outputEeprom(OutputStream out) throws IOException {
-        long length = Utils.transferBytes(new ByteArrayInputStream(mEeprom), out, EEPROM_CALLBACK);
+        long length = StreamUtils.transferBytes(new ByteArrayInputStream(mEeprom), out,
+                EEPROM_CALLBACK);
         return (length >= EEPROM_SIZE);
     }
 
@@ -319,6 +758,95 @@ public class ArduboyEmulator {
         }
     }
 
+    /*-----------------------------------------------------------------------*/
+    /*                              Input Movie                              */
+    /*-----------------------------------------------------------------------*/
+
+    public int getMovieMode() {
+        return mMovieMode;
+    }
+
+    /**
+     * Restart the program and record the inputs from the beginning.
+     */
+    public synchronized boolean startRecording() {
+        if (mPath == null || mHexHash == null || mMovieMode != MOVIE_NONE) {
+            return false;
+        }
+        stopEmulation();
+        boolean isTuned = mApp.getEmulationTuning();
+        boolean isPostRefresh = mApp.getEmulationPostRefresh();
+        if (!initializeEmulation(mPath, isTuned, isPostRefresh)) {
+            return false;
+        }
+        mMovie = new InputMovie(mHexHash, mEeprom, isTuned, isPostRefresh);
+        mMovieMode = MOVIE_RECORDING;
+        Utils.showToast(mApp, R.string.messageRecordStart);
+        return startEmulation();
+    }
+
+    public synchronized boolean stopRecording() {
+        if (mMovieMode != MOVIE_RECORDING) {
+            return false;
+        }
+        boolean isEmulating = mIsEmulating;
+        stopEmulation();
+        mMovieMode = MOVIE_NONE;
+        ensureCaptureDir();
+        File file = new File(CAPTURE_DIR, DateFormat.format(
+                MOVIE_FILE_NAME_FORMAT, Calendar.getInstance()).toString());
+        boolean ret = mMovie.write(file);
+        if (ret) {
+            String message = String.format(mApp.getString(R.string.messageRecordMovie),
+                    file.getName());
+            Utils.showToast(mApp, message);
+        } else {
+            Utils.showToast(mApp, R.string.messageSaveFailed);
+        }
+        if (isEmulating) {
+            startEmulation();
+        }
+        return ret;
+    }
+
+    /**
+     * Restart the program with the initial EEPROM of the movie and replay the
+     * inputs. The movie must be recorded with the current program.
+     */
+    public synchronized boolean startReplay(String moviePath) {
+        InputMovie movie = InputMovie.read(new File(moviePath));
+        if (movie == null || mPath == null || !movie.isMatched(mHexHash)) {
+            return false;
+        }
+        if (mMovieMode == MOVIE_RECORDING) {
+            stopRecording();
+        }
+        stopEmulation();
+        if (!initializeEmulation(mPath, movie.isTuned(), movie.isPostRefresh())) {
+            return false;
+        }
+        mCore.setEeprom(movie.getEeprom());
+        mIsEepromDetached = true; // don't save the EEPROM changed by the replay
+        movie.startReplay();
+        mMovie = movie;
+        mMovieMode = MOVIE_REPLAYING;
+        Utils.showToast(mApp, R.string.messageReplayStart);
+        return startEmulation();
+    }
+
+    /**
+     * The emulation continues with the live inputs.
+     */
+    public synchronized void stopReplay() {
+        if (mMovieMode == MOVIE_REPLAYING) {
+            mMovieMode = MOVIE_NONE;
+        }
+    }
+
+    public static String getMovieDirPath() {
+        return CAPTURE_DIR.getAbsolutePath();
+    }
+
     /*-----------------------------------------------------------------------*/
     /*                            Screen Capture                             */
     /*-----------------------------------------------------------------------*/
@@ -338,7 +866,7 @@ public class ArduboyEmulator {
         if (!mIsEmulating || mIsCapturing) {
             return false;
         }
-        if (mGifEncoder.start(getCaptureWorkFile())) {
+        if (mGifCapture.start(getCaptureWorkFile())) {
             Utils.showToast(mApp, R.string.messageCaptureStart);
             mIsCapturing = true;
         }
@@ -351,7 +879,7 @@ public class ArduboyEmulator {
         }
         mIsCapturing = false;
         File file = generateCaptureFile();
-        if (mGifEncoder.finish(file)) {
+        if (mGifCapture.finish(file)) {
             notifyCaptured(file, true);
             return true;
         } else {
@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Locale;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -36,24 +37,41 @@ public class ArduboyUtils {
     private static final String INFO_FILE_NAME = "info.json";
     private static final String JSON_KEY_BINARIES = "binaries";
     private static final String JSON_KEY_FILENAME = "filename";
+    private static final String EXT_HEX = ".hex";
 
+    /*
+     * This class doesn't depend on Android, except org.json which is bundled
+     * with Android.
+     */
     public static boolean extractHexFromArduboy(File arduboyFile, File outFile) {
+        return extractHexFromArduboy(arduboyFile, outFile, false);
+    }
+
+    /**
+     * @param isAnyHexAccepted true to take the first .hex file of a zip file
+     *                         without info.json, for the headless tools
+     */
+    public static boolean extractHexFromArduboy(File arduboyFile, File outFile,
+            boolean isAnyHexAccepted) {
         try {
+            String hexFileName;
             InputStream in = extractStreamFileFromZip(arduboyFile, INFO_FILE_NAME);
-            if (in == null) {
-                return false;
+            if (in != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                StreamUtils.transferBytes(in, out, StreamUtils.SMALL_BUFFER_SIZE, null);
+                JSONObject infoJson = new JSONObject(new String(out.toByteArray(), UTF8));
+                JSONArray binariesJson = infoJson.getJSONArray(JSON_KEY_BINARIES);
+                JSONObject binaryJson = (JSONObject) binariesJson.get(0);
+                hexFileName = binaryJson.getString(JSON_KEY_FILENAME);
+            } else {
+                hexFileName = (isAnyHexAccepted) ? findHexFileNameInZip(arduboyFile) : null;
             }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            Utils.transferBytes(in, out, null);
-            JSONObject infoJson = new JSONObject(new String(out.toByteArray(), UTF8));
-            JSONArray binariesJson = infoJson.getJSONArray(JSON_KEY_BINARIES);
-            JSONObject binaryJson = (JSONObject) binariesJson.get(0);
-            String hexFileName = binaryJson.getString(JSON_KEY_FILENAME);
-            in = extractStreamFileFromZip(arduboyFile, hexFileName);
+            in = (hexFileName != null) ? extractStreamFileFromZip(arduboyFile, hexFileName) : null;
             if (in == null) {
                 return false;
             }
-            Utils.transferBytes(in, new FileOutputStream(outFile), null);
+            StreamUtils.transferBytes(in, new FileOutputStream(outFile),
+                    StreamUtils.SMALL_BUFFER_SIZE, null);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -61,6 +79,20 @@ public class ArduboyUtils {
         }
     }
 
+    private static String findHexFileNameInZip(File zipFile) throws IOException {
+        ZipInputStream zin = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            for (ZipEntry entry = zin.getNextEntry(); entry != null; entry = zin.getNextEntry()) {
+                if (entry.getName().toLowerCase(Locale.US).endsWith(EXT_HEX)) {
+                    return entry.getName();
+                }
+            }
+        } finally {
+            zin.close();
+        }
+        return null;
+    }
+
     private static InputStream extractStreamFileFromZip(File zipFile, String fname) {
         ZipInputStream zin = null;
         try {
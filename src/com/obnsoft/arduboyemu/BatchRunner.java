@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Runs many programs headlessly on a fixed thread pool, one machine for each
+ * worker thread, and reports how each of them ended up.
+ *
+ * Usage: java com.obnsoft.arduboyemu.BatchRunner [-t threads] [-f frames]
+ *        [-i script] [-tuned] [-o report.csv|report.json] files or directories...
+ *
+ * The input script is comma separated steps of "frames:buttons", where
+ * buttons are joined with '+', e.g. "120:,5:A,60:RIGHT+B". After the script,
+ * the program runs without input.
+ */
+public class BatchRunner {
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_SLEEPING = "sleeping";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_CRASHED = "crashed";
+    public static final String STATUS_LOAD_FAILED = "load_failed";
+
+    public static final int DEFAULT_FRAMES = 600;
+
+    private static final String EXT_HEX = ".hex";
+    private static final String EXT_ARDUBOY = ".arduboy";
+    private static final String[] BUTTON_NAMES = new String[] {
+            "UP", "DOWN", "LEFT", "RIGHT", "A", "B"
+    };
+
+    public static class Result {
+
+        public String   path;
+        public String   status;
+        public int      frames;
+        public String   frameHash;  // CRC32 of the last packed frame
+        public float    fps;
+        public float    emulatedMhz;
+        public long     elapsedNanos;
+
+        public static String getCsvHeader() {
+            return "path,status,frames,frame_hash,fps,emulated_mhz,elapsed_ms";
+        }
+
+        public String toCsv() {
+            return String.format(Locale.US, "\"%s\",%s,%d,%s,%.1f,%.3f,%.1f",
+                    path.replace("\"", "\"\""), status, frames,
+                    (frameHash != null) ? frameHash : "", fps, emulatedMhz, elapsedNanos / 1e6f);
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"path\":\"%s\",\"status\":\"%s\",\"frames\":%d,"
+                    + "\"frame_hash\":%s,\"fps\":%.1f,\"emulated_mhz\":%.3f,\"elapsed_ms\":%.1f}",
+                    path.replace("\\", "\\\\").replace("\"", "\\\""), status, frames,
+                    (frameHash != null) ? "\"" + frameHash + "\"" : "null",
+                    fps, emulatedMhz, elapsedNanos / 1e6f);
+        }
+    }
+
+    private int         mThreads;
+    private int         mFrames = DEFAULT_FRAMES;
+    private boolean     mIsTuned;
+    private int[]       mScriptMasks = new int[0];
+    private int[]       mScriptLengths = new int[0];
+    private List<EmulatorCore>  mCores = Collections.synchronizedList(new ArrayList<EmulatorCore>());
+    private ThreadLocal<EmulatorCore> mWorkerCore = new ThreadLocal<EmulatorCore>() {
+        @Override
+        protected EmulatorCore initialValue() {
+            EmulatorCore core = new EmulatorCore();
+            mCores.add(core);
+            return core;
+        }
+    };
+
+    public BatchRunner(int threads) {
+        mThreads = Math.max(threads, 1);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public void setFrames(int frames) {
+        mFrames = frames;
+    }
+
+    public void setTuned(boolean isTuned) {
+        mIsTuned = isTuned;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the script is malformed
+     */
+    public void setInputScript(String script) {
+        List<int[]> steps = new ArrayList<int[]>();
+        if (script != null && script.trim().length() > 0) {
+            for (String step : script.split(",")) {
+                int colon = step.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Invalid step: " + step);
+                }
+                int length = Integer.parseInt(step.substring(0, colon).trim());
+                int buttonMask = 0;
+                for (String name : step.substring(colon + 1).split("\\+")) {
+                    name = name.trim().toUpperCase(Locale.US);
+                    if (name.length() == 0) {
+                        continue;
+                    }
+                    int button = Arrays.asList(BUTTON_NAMES).indexOf(name);
+                    if (button < 0) {
+                        throw new IllegalArgumentException("Invalid button: " + name);
+                    }
+                    buttonMask |= 1 << button;
+                }
+                steps.add(new int[] { buttonMask, length });
+            }
+        }
+        mScriptMasks = new int[steps.size()];
+        mScriptLengths = new int[steps.size()];
+        for (int i = 0; i < steps.size(); i++) {
+            mScriptMasks[i] = steps.get(i)[0];
+            mScriptLengths[i] = steps.get(i)[1];
+        }
+    }
+
+    /**
+     * Run all programs and wait for them.
+     *
+     * @return the results in the same order as the paths
+     */
+    public List<Result> run(List<String> paths) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final String path : paths) {
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return runOne(mWorkerCore.get(), path);
+                }
+            }));
+        }
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    Result result = new Result();
+                    result.path = paths.get(i);
+                    result.status = STATUS_LOAD_FAILED;
+                    results.add(result);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized (mCores) {
+                for (EmulatorCore core : mCores) {
+                    core.release();
+                }
+                mCores.clear();
+            }
+        }
+        return results;
+    }
+
+    public static void writeCsv(List<Result> results, Writer out) throws IOException {
+        out.write(Result.getCsvHeader());
+        out.write('\n');
+        for (Result result : results) {
+            out.write(result.toCsv());
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    public static void writeJson(List<Result> results, Writer out) throws IOException {
+        out.write("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            out.write("  ");
+            out.write(results.get(i).toJson());
+            out.write((i < results.size() - 1) ? ",\n" : "\n");
+        }
+        out.write("]\n");
+        out.flush();
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private Result runOne(EmulatorCore core, String path) {
+        Result result = new Result();
+        result.path = path;
+        File hexFile = new File(path);
+        File workFile = null;
+        if (path.toLowerCase(Locale.US).endsWith(EXT_ARDUBOY)) {
+            try {
+                workFile = File.createTempFile("batch", EXT_HEX);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (workFile == null
+                    || !ArduboyUtils.extractHexFromArduboy(hexFile, workFile, true)) {
+                result.status = STATUS_LOAD_FAILED;
+                if (workFile != null) {
+                    workFile.delete();
+                }
+                return result;
+            }
+            hexFile = workFile;
+        }
+
+        try {
+            if (!core.load(hexFile.getAbsolutePath(), mIsTuned)) {
+                result.status = STATUS_LOAD_FAILED;
+                return result;
+            }
+            byte[] eeprom = new byte[EmulatorCore.EEPROM_SIZE];
+            Arrays.fill(eeprom, (byte) 0xFF);
+            core.setEeprom(eeprom);
+
+            long cycles = 0;
+            int step = 0;
+            int stepFrames = 0;
+            long startTime = System.nanoTime();
+            while (result.frames < mFrames) {
+                int buttonMask = 0;
+                while (step < mScriptMasks.length && stepFrames >= mScriptLengths[step]) {
+                    step++;
+                    stepFrames = 0;
+                }
+                if (step < mScriptMasks.length) {
+                    buttonMask = mScriptMasks[step];
+                    stepFrames++;
+                }
+                if (core.step(buttonMask) == Native.LOOP_FAILED) {
+                    break;
+                }
+                cycles += core.getStatus(Native.STATUS_CYCLES);
+                result.frames++;
+            }
+            result.elapsedNanos = System.nanoTime() - startTime;
+            if (result.elapsedNanos > 0) {
+                result.fps = result.frames * 1e9f / result.elapsedNanos;
+                result.emulatedMhz = cycles * 1e3f / result.elapsedNanos;
+            }
+            result.status = getStatusName(core.getCpuState());
+            result.frameHash = getFrameHash(core.getFramebuffer());
+            return result;
+        } finally {
+            core.teardown();
+            if (workFile != null) {
+                workFile.delete();
+            }
+        }
+    }
+
+    private static String getStatusName(int cpuState) {
+        switch (cpuState) {
+        case Native.CPU_STATE_SLEEPING:
+            return STATUS_SLEEPING;
+        case Native.CPU_STATE_DONE:
+            return STATUS_DONE;
+        case Native.CPU_STATE_CRASHED:
+            return STATUS_CRASHED;
+        default:
+            return STATUS_OK;
+        }
+    }
+
+    private static String getFrameHash(ByteBuffer framebuffer) {
+        byte[] packed = new byte[framebuffer.capacity()];
+        framebuffer.position(0);
+        framebuffer.get(packed);
+        framebuffer.position(0);
+        CRC32 crc = new CRC32();
+        crc.update(packed);
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static void collectFiles(File file, List<String> paths) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File child : files) {
+                    collectFiles(child, paths);
+                }
+            }
+        } else {
+            String name = file.getName().toLowerCase(Locale.US);
+            if (name.endsWith(EXT_HEX) || name.endsWith(EXT_ARDUBOY)) {
+                paths.add(file.getPath());
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int frames = DEFAULT_FRAMES;
+        boolean isTuned = false;
+        String script = null;
+        String outPath = null;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-t".equals(arg) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-f".equals(arg) && i + 1 < args.length) {
+                frames = Integer.parseInt(args[++i]);
+            } else if ("-i".equals(arg) && i + 1 < args.length) {
+                script = args[++i];
+            } else if ("-o".equals(arg) && i + 1 < args.length) {
+                outPath = args[++i];
+            } else if ("-tuned".equals(arg)) {
+                isTuned = true;
+            } else {
+                collectFiles(new File(arg), paths);
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: BatchRunner [-t threads] [-f frames] [-i script] "
+                    + "[-tuned] [-o report.csv|report.json] files or directories...");
+            System.exit(2);
+        }
+
+        BatchRunner runner = new BatchRunner(threads);
+        runner.setFrames(frames);
+        runner.setTuned(isTuned);
+        runner.setInputScript(script);
+        List<Result> results = runner.run(paths);
+
+        Writer out = (outPath != null)
+                ? new OutputStreamWriter(new FileOutputStream(outPath), "UTF-8")
+                : new OutputStreamWriter(System.out, "UTF-8");
+        try {
+            if (outPath != null && outPath.toLowerCase(Locale.US).endsWith(".json")) {
+                writeJson(results, out);
+            } else {
+                writeCsv(results, out);
+            }
+        } finally {
+            if (outPath != null) {
+                out.close();
+            }
+        }
+        int failures = 0;
+        for (Result result : results) {
+            if (!STATUS_OK.equals(result.status) && !STATUS_SLEEPING.equals(result.status)) {
+                failures++;
+            }
+        }
+        System.exit((failures > 0) ? 1 : 0);
+    }
+}
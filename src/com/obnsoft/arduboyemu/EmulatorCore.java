@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Headless emulation core over {@link Native}.
+ * This class doesn't depend on Android, so it can be used from a plain JVM
+ * with the host build of the JNI library (see jni/Makefile).
+ * Each instance owns its own native machine, so several instances can run in
+ * parallel threads, though one instance must be used by one thread at a time.
+ */
+public class EmulatorCore {
+
+    public static final int EEPROM_SIZE = 1024;
+
+    private long        mHandle;
+    private ByteBuffer  mFramebuffer;
+    private ByteBuffer  mStatus;
+    private IntBuffer   mStatusInt;
+    private boolean     mIsAvailable;
+    private int         mButtonMask;
+    private String      mHexFilePath;
+    private byte[]      mHexHash;
+    private FlashImageCache mFlashCache;
+
+    public EmulatorCore() {
+        mFramebuffer = ByteBuffer.allocateDirect(Native.PACKED_SIZE);
+        mStatus = ByteBuffer.allocateDirect(Native.STATUS_MAX * 4).order(ByteOrder.nativeOrder());
+        mStatusInt = mStatus.asIntBuffer();
+        mHandle = Native.create();
+        if (mHandle != 0) {
+            Native.attachFramebuffer(mHandle, mFramebuffer, Native.FRAMEBUFFER_PACKED);
+            Native.attachStatus(mHandle, mStatus);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * With the cache, loading the same program again skips decoding .hex.
+     */
+    public void setFlashImageCache(FlashImageCache cache) {
+        mFlashCache = cache;
+    }
+
+    public synchronized boolean load(String hexFilePath, boolean isTuned) {
+        if (mIsAvailable) {
+            teardown();
+        }
+        mHexFilePath = hexFilePath;
+        mHexHash = null;
+        if (mHandle == 0) {
+            return false;
+        }
+        if (mFlashCache != null) {
+            FlashImageCache.Image image = mFlashCache.get(hexFilePath);
+            if (image != null) {
+                mIsAvailable = Native.setupFlash(mHandle, image.flash, image.bootBase, isTuned);
+                mHexHash = image.hash;
+            }
+        } else {
+            mIsAvailable = Native.setup(mHandle, hexFilePath, isTuned);
+        }
+        return mIsAvailable;
+    }
+
+    /**
+     * @return SHA-1 of the loaded .hex file, or null if failed
+     */
+    public byte[] getHexHash() {
+        if (mHexHash == null && mHexFilePath != null) {
+            mHexHash = FlashImageCache.getFileHash(mHexFilePath);
+        }
+        return mHexHash;
+    }
+
+    public boolean isAvailable() {
+        return mIsAvailable;
+    }
+
+    public synchronized void teardown() {
+        if (mIsAvailable) {
+            Native.teardown(mHandle);
+            mIsAvailable = false;
+        }
+    }
+
+    /**
+     * Free the native machine. This instance can't be used any more.
+     */
+    public synchronized void release() {
+        teardown();
+        if (mHandle != 0) {
+            Native.destroy(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    /**
+     * Reset the machine in place, keeping the program and EEPROM.
+     */
+    public synchronized boolean reset() {
+        return mIsAvailable && Native.reset(mHandle);
+    }
+
+    public boolean setRefreshTiming(boolean isPostpone) {
+        return mHandle != 0 && Native.setRefreshTiming(mHandle, isPostpone);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public void setButtonMask(int buttonMask) {
+        mButtonMask = buttonMask;
+    }
+
+    public void setButton(int button, boolean isPressed) {
+        if (isPressed) {
+            mButtonMask |= 1 << button;
+        } else {
+            mButtonMask &= ~(1 << button);
+        }
+    }
+
+    public int getButtonMask() {
+        return mButtonMask;
+    }
+
+    /**
+     * Emulate one frame with the current buttons.
+     *
+     * @return bit mask of changed pages, or {@link Native#LOOP_FAILED}
+     */
+    public int step() {
+        return step(mButtonMask);
+    }
+
+    public int step(int buttonMask) {
+        mButtonMask = buttonMask;
+        return (mIsAvailable) ? Native.step(mHandle, buttonMask) : Native.LOOP_FAILED;
+    }
+
+    /**
+     * Emulate some frames with the current buttons.
+     *
+     * @return the number of emulated frames, which is less than the requested
+     *         one when the emulation has stopped
+     */
+    public int run(int frames) {
+        for (int i = 0; i < frames; i++) {
+            if (step() == Native.LOOP_FAILED) {
+                return i;
+            }
+        }
+        return frames;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @return the framebuffer in packed format (see {@link PackedScreen})
+     */
+    public ByteBuffer getFramebuffer() {
+        return mFramebuffer;
+    }
+
+    /**
+     * @param index one of Native.STATUS_*
+     */
+    public int getStatus(int index) {
+        return mStatusInt.get(index);
+    }
+
+    public int getLedRgb() {
+        return 0xFF000000 | getStatus(Native.STATUS_LED_RED) << 16
+                | getStatus(Native.STATUS_LED_GREEN) << 8 | getStatus(Native.STATUS_LED_BLUE);
+    }
+
+    /**
+     * @return one of Native.CPU_STATE_*
+     */
+    public int getCpuState() {
+        return (mHandle != 0) ? Native.getCpuState(mHandle) : Native.CPU_STATE_NONE;
+    }
+
+    /**
+     * @return the size of the machine state in bytes, or -1 if unavailable
+     */
+    public int getStateSize() {
+        return (mIsAvailable) ? Native.getStateSize(mHandle) : -1;
+    }
+
+    /**
+     * @return the whole machine state, or null if failed
+     */
+    public byte[] saveState() {
+        int size = getStateSize();
+        if (size < 0) {
+            return null;
+        }
+        byte[] state = new byte[size];
+        return saveState(state) ? state : null;
+    }
+
+    /**
+     * Save the whole machine state into the array, which is reusable while the
+     * same program is loaded.
+     *
+     * @param state an array of getStateSize() bytes
+     */
+    public boolean saveState(byte[] state) {
+        return mIsAvailable && Native.saveState(mHandle, state);
+    }
+
+    /**
+     * The state must be saved with the same program.
+     */
+    public boolean loadState(byte[] state) {
+        return mIsAvailable && Native.loadState(mHandle, state);
+    }
+
+    public boolean getEeprom(byte[] eeprom) {
+        return mIsAvailable && Native.getEeprom(mHandle, eeprom);
+    }
+
+    public boolean setEeprom(byte[] eeprom) {
+        return mIsAvailable && Native.setEeprom(mHandle, eeprom);
+    }
+}
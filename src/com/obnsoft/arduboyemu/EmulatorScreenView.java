@@ -18,8 +18,15 @@
 
 package com.obnsoft.arduboyemu;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -29,12 +36,16 @@ import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 
-public class EmulatorScreenView extends View {
+public class EmulatorScreenView extends View implements SurfaceHolder.Callback {
 
     private static final int SKIN_W = 230;
     private static final int SKIN_H = 368;
@@ -72,18 +83,52 @@ public class EmulatorScreenView extends View {
 
     private static final int TOUCH_STATE_MAX = 10;
 
+    private static final long FRAME_PENDING_TIMEOUT_NANOS = 100000000L;
+    private static final int RENDER_THREAD_JOIN_MILLIS = 1000;
+
+    private static final int REDRAW_SCREEN  = 1;
+    private static final int REDRAW_ALL     = 2;
+
+    private static final int STATS_TEXT_SIZE = 10;
+    private static final int STATS_BACK_COLOR = Color.argb(160, 0, 0, 0);
+
     private float       mBaseX, mBaseY, mScale;
+    private int         mBackgroundColor;
+    private Bitmap      mBackground;
+    private SurfaceView mSurfaceView;
+    private boolean     mIsSurfaceMode;
+    private boolean     mIsSurfaceReady;
+    private Object      mSurfaceLock = new Object();
+    private Thread      mRenderThread;
+    private volatile boolean mIsRendering;
+    private AtomicInteger mRedrawFlags = new AtomicInteger();
+    private TripleFrameBuffer mFrameBuffer = new TripleFrameBuffer();
+    private ByteBuffer  mSourcePacked;
+    private int         mPostedLedRgb = Color.BLACK;
+    private boolean[]   mPostedLedUartOn = new boolean[LED_UART_ID_MAX];
     private DrawObject  mSkin;
     private DrawObject  mScreen;
+    private Rect        mScreenRect = new Rect();
+    private Rect        mScreenDirtyRect = new Rect();
+    private ByteBuffer  mScreenPixels;
+    private IntBuffer   mScreenPixelsInt;
     private DrawObject  mLedRgbFlare;
     private DrawObject[] mLedUartFlare;
     private boolean     mIsDrawButton;
     private Paint       mButtonPaint;
+    private Paint       mStatsPaint;
+    private Paint       mStatsBackPaint;
 
     private int         mLedRgbColor = Color.BLACK;
     private float[]     mLedRgbWorkHSV = new float[3];
     private boolean[]   mLedUartOn = new boolean[LED_UART_ID_MAX];
     private boolean[]   mButtonState = new boolean[Native.BUTTON_MAX];
+    private int         mButtonMask;
+    private boolean     mIsLedChanged;
+    private boolean     mIsButtonChanged;
+    private volatile String[] mStatsLines;
+    private boolean     mIsStatsChanged;
+    private long        mFramePostedTime;
     private PointF[]    mButtonPosition = new PointF[Native.BUTTON_MAX];
     private float       mButtonSize;
     private PointF[]    mTouchPoint = new PointF[TOUCH_STATE_MAX];
@@ -153,6 +198,9 @@ public class EmulatorScreenView extends View {
         mSkin = new DrawObject(R.drawable.skin, false);
         mScreen = new DrawObject(Bitmap.createBitmap(SCREEN_W, SCREEN_H, Bitmap.Config.ARGB_8888),
                 null, new Paint(0)); // No ANTI_ALIAS_FLAG, No FILTER_BITMAP_FLAG
+        mScreenPixels = ByteBuffer.allocateDirect(SCREEN_W * SCREEN_H * 4)
+                .order(ByteOrder.nativeOrder());
+        mScreenPixelsInt = mScreenPixels.asIntBuffer();
         mLedRgbFlare = new DrawObject(R.drawable.flare, true);
         mLedUartFlare = new DrawObject[LED_UART_ID_MAX];
         for (int i = 0; i < LED_UART_ID_MAX; i++) {
@@ -160,6 +208,18 @@ public class EmulatorScreenView extends View {
         }
         mButtonPaint = new Paint();
         mButtonPaint.setStyle(Paint.Style.FILL);
+        mStatsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mStatsPaint.setColor(Color.WHITE);
+        mStatsPaint.setTypeface(Typeface.MONOSPACE);
+        mStatsPaint.setTextSize(
+                STATS_TEXT_SIZE * getResources().getDisplayMetrics().scaledDensity);
+        mStatsBackPaint = new Paint();
+        mStatsBackPaint.setColor(STATS_BACK_COLOR);
+
+        TypedArray ary = context.obtainStyledAttributes(
+                new int[] { android.R.attr.colorBackground });
+        mBackgroundColor = ary.getColor(0, Color.BLACK);
+        ary.recycle();
 
         for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
             mButtonPosition[buttonIdx] = new PointF();
@@ -184,6 +244,12 @@ public class EmulatorScreenView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        synchronized (mSurfaceLock) {
+            if (mBackground != null) {
+                mBackground.recycle();
+                mBackground = null;
+            }
+        }
 
         /*  Skin position  */
         boolean isLandscape = (w > h);
@@ -193,6 +259,9 @@ public class EmulatorScreenView extends View {
         mBaseY = (h - tmpH * mScale) / 2f;
         mSkin.setCoords(0, 0, SKIN_W, SKIN_H);
         mScreen.setCoords(SCREEN_X, SCREEN_Y, SCREEN_W, SCREEN_H);
+        mScreenRect.set((int) (mBaseX + SCREEN_X * mScale), (int) (mBaseY + SCREEN_Y * mScale),
+                (int) Math.ceil(mBaseX + (SCREEN_X + SCREEN_W) * mScale),
+                (int) Math.ceil(mBaseY + (SCREEN_Y + SCREEN_H) * mScale));
         for (int i = 0; i < LED_UART_ID_MAX; i++) {
             mLedUartFlare[i].setCoordsCenter(LED_UART_X + LED_UART_GX * i, LED_UART_Y,
                     LED_FLARE_SIZE, LED_FLARE_SIZE);
@@ -233,9 +302,136 @@ public class EmulatorScreenView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (mIsSurfaceMode) {
+            return; // everything is drawn on the surface behind this view
+        }
 
         /*  Arduboy  */
+        consumeFrame();
         mSkin.draw(canvas);
+        drawFrame(canvas);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        // do nothing
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (mSurfaceLock) {
+            mIsSurfaceReady = true;
+        }
+        requestRedraw(REDRAW_ALL);
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mIsSurfaceReady = false;
+        }
+    }
+
+    public void bindSurfaceView(SurfaceView surfaceView) {
+        if (mSurfaceView != null) {
+            mSurfaceView.getHolder().removeCallback(this);
+        }
+        mSurfaceView = surfaceView;
+        if (mSurfaceView != null) {
+            mSurfaceView.getHolder().addCallback(this);
+        }
+    }
+
+    public void setSurfaceMode(boolean isSurfaceMode) {
+        isSurfaceMode = (isSurfaceMode && mSurfaceView != null);
+        if (isSurfaceMode) {
+            mIsSurfaceMode = true;
+            startRenderThread();
+            requestRedraw(REDRAW_ALL);
+        } else {
+            stopRenderThread(); // the UI thread becomes the consumer of frames
+            mIsSurfaceMode = false;
+        }
+        if (mSurfaceView != null) {
+            mSurfaceView.setVisibility(mIsSurfaceMode ? View.VISIBLE : View.GONE);
+        }
+        invalidate();
+    }
+
+    private void startRenderThread() {
+        if (mRenderThread != null) {
+            return;
+        }
+        mIsRendering = true;
+        mRenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsRendering) {
+                    int flags = mRedrawFlags.getAndSet(0);
+                    if (flags == 0) {
+                        LockSupport.park(this);
+                    } else {
+                        drawSurface((flags & REDRAW_ALL) == 0);
+                    }
+                }
+            }
+        });
+        mRenderThread.start();
+    }
+
+    private void stopRenderThread() {
+        if (mRenderThread == null) {
+            return;
+        }
+        mIsRendering = false;
+        LockSupport.unpark(mRenderThread);
+        try {
+            mRenderThread.join(RENDER_THREAD_JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mRenderThread = null;
+    }
+
+    private void requestRedraw(int flag) {
+        int flags;
+        do {
+            flags = mRedrawFlags.get();
+        } while (!mRedrawFlags.compareAndSet(flags, flags | flag));
+        Thread renderThread = mRenderThread;
+        if (renderThread != null) {
+            LockSupport.unpark(renderThread);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Take the newest frame from the emulation thread. Called by the thread
+     * which draws, i.e. the UI thread or the render thread.
+     */
+    private void consumeFrame() {
+        TripleFrameBuffer.Frame frame = mFrameBuffer.acquireLatest();
+        if (frame == null) {
+            return;
+        }
+        PackedScreen.toPixels(frame.packed, mScreenPixelsInt);
+        synchronized (mScreen) {
+            if (!mScreen.bitmap.isRecycled()) {
+                // Pixels are gray-scale, so the channel order of the buffer doesn't matter.
+                mScreenPixels.rewind();
+                mScreen.bitmap.copyPixelsFromBuffer(mScreenPixels);
+            }
+        }
+        mLedRgbColor = frame.ledRgb;
+        mLedUartOn[LED_UART_ID_RX] = frame.isRxOn;
+        mLedUartOn[LED_UART_ID_TX] = frame.isTxOn;
+        mLedUartOn[LED_UART_ID_CHARGE] = frame.isCharging;
+    }
+
+    private void drawFrame(Canvas canvas) {
         mScreen.draw(canvas);
 
         /*  Flare of RGB LED  */
@@ -264,42 +460,163 @@ public class EmulatorScreenView extends View {
                         mButtonSize, mButtonPaint);
             }
         }
+
+        /*  Frame statistics  */
+        String[] statsLines = mStatsLines;
+        if (statsLines != null) {
+            float lineHeight = mStatsPaint.getFontSpacing();
+            float width = 0f;
+            for (String line : statsLines) {
+                width = Math.max(width, mStatsPaint.measureText(line));
+            }
+            canvas.drawRect(0f, 0f, width + lineHeight, lineHeight * (statsLines.length + 1),
+                    mStatsBackPaint);
+            float y = lineHeight / 2f - mStatsPaint.ascent();
+            for (String line : statsLines) {
+                canvas.drawText(line, lineHeight / 2f, y, mStatsPaint);
+                y += lineHeight;
+            }
+        }
+    }
+
+    private void drawSurface(boolean isOnlyScreen) {
+        synchronized (mSurfaceLock) {
+            if (!mIsSurfaceMode || !mIsSurfaceReady || getWidth() == 0 || getHeight() == 0) {
+                return;
+            }
+            consumeFrame();
+
+            /*  The skin is composited only once  */
+            if (mBackground == null) {
+                mBackground = Bitmap.createBitmap(getWidth(), getHeight(),
+                        Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(mBackground);
+                canvas.drawColor(mBackgroundColor);
+                mSkin.draw(canvas);
+            }
+
+            /*  Pixels out of the dirty rectangle are preserved by the surface  */
+            SurfaceHolder holder = mSurfaceView.getHolder();
+            mScreenDirtyRect.set(mScreenRect); // lockCanvas() may modify it
+            Canvas canvas = (isOnlyScreen) ? holder.lockCanvas(mScreenDirtyRect)
+                    : holder.lockCanvas();
+            if (canvas != null) {
+                canvas.drawBitmap(mBackground, 0, 0, null);
+                drawFrame(canvas);
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
     }
 
     /*-----------------------------------------------------------------------*/
 
-    public boolean[] updateButtonState() {
+    public int updateButtonState() {
         for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
             mButtonState[buttonIdx] = false;
         }
+        int buttonMask = 0;
         float threshold = mButtonSize * 1.25f;
         for (int touchIdx = 0; touchIdx < mTouchPointCount; touchIdx++) {
             for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
                 if (PointF.length(mTouchPoint[touchIdx].x - mButtonPosition[buttonIdx].x,
                         mTouchPoint[touchIdx].y - mButtonPosition[buttonIdx].y) <= threshold) {
                     mButtonState[buttonIdx] = true;
+                    buttonMask |= 1 << buttonIdx;
                 }
             }
         }
-        return mButtonState;
+        if (mButtonMask != buttonMask) {
+            mButtonMask = buttonMask;
+            mIsButtonChanged = mIsDrawButton;
+        }
+        return buttonMask;
     }
 
-    public void updateScreen(int[] pixels) {
-        synchronized (mScreen) {
-            if (!mScreen.bitmap.isRecycled()) {
-                mScreen.bitmap.setPixels(pixels, 0, SCREEN_W, 0, 0, SCREEN_W, SCREEN_H);
-            }
+    public void updateLed(int rgb, boolean isRxOn, boolean isTxOn, boolean isCharging) {
+        if (mPostedLedRgb != rgb || mPostedLedUartOn[LED_UART_ID_RX] != isRxOn
+                || mPostedLedUartOn[LED_UART_ID_TX] != isTxOn
+                || mPostedLedUartOn[LED_UART_ID_CHARGE] != isCharging) {
+            mIsLedChanged = true;
         }
+        mPostedLedRgb = rgb;
+        mPostedLedUartOn[LED_UART_ID_RX] = isRxOn;
+        mPostedLedUartOn[LED_UART_ID_TX] = isTxOn;
+        mPostedLedUartOn[LED_UART_ID_CHARGE] = isCharging;
     }
 
-    public void updateLed(int rgb, boolean isRxOn, boolean isTxOn, boolean isCharging) {
-        mLedRgbColor = rgb;
-        mLedUartOn[LED_UART_ID_RX] = isRxOn;
-        mLedUartOn[LED_UART_ID_TX] = isTxOn;
-        mLedUartOn[LED_UART_ID_CHARGE] = isCharging;
+    /**
+     * @return false while the previous frame hasn't been drawn yet
+     */
+    public boolean isReadyForFrame() {
+        return !mFrameBuffer.hasFreshFrame()
+                || System.nanoTime() - mFramePostedTime >= FRAME_PENDING_TIMEOUT_NANOS;
+    }
+
+    public void updateStats(String[] lines) {
+        mStatsLines = lines;
+        mIsStatsChanged = true;
+    }
+
+    /**
+     * Remove the statistics at once, even while the emulation is paused.
+     * This only requests a redraw, so it may be called by any thread without
+     * publishing a frame.
+     */
+    public void clearStats() {
+        mStatsLines = null;
+        if (mIsSurfaceMode) {
+            requestRedraw(REDRAW_ALL);
+        } else {
+            postInvalidate();
+        }
+    }
+
+    /**
+     * Publish a frame if anything has changed. Called by the emulation thread,
+     * which never waits for drawing.
+     *
+     * @param packed the framebuffer in packed format, or null to reuse the last one
+     */
+    public void postFrame(ByteBuffer packed, int dirtyPages) {
+        if (packed != null) {
+            mSourcePacked = packed;
+        }
+        boolean isAllChanged = (mIsLedChanged || mIsButtonChanged || mIsStatsChanged);
+        if (!isAllChanged && dirtyPages == 0) {
+            return;
+        }
+        mIsLedChanged = false;
+        mIsButtonChanged = false;
+        mIsStatsChanged = false;
+
+        TripleFrameBuffer.Frame frame = mFrameBuffer.getBackFrame(mSourcePacked);
+        frame.ledRgb = mPostedLedRgb;
+        frame.isRxOn = mPostedLedUartOn[LED_UART_ID_RX];
+        frame.isTxOn = mPostedLedUartOn[LED_UART_ID_TX];
+        frame.isCharging = mPostedLedUartOn[LED_UART_ID_CHARGE];
+        mFrameBuffer.publish();
+        mFramePostedTime = System.nanoTime();
+
+        if (mIsSurfaceMode) {
+            requestRedraw((isAllChanged) ? REDRAW_ALL : REDRAW_SCREEN);
+        } else if (isAllChanged) {
+            postInvalidate();
+        } else {
+            postInvalidate(mScreenRect.left, mScreenRect.top,
+                    mScreenRect.right, mScreenRect.bottom);
+        }
     }
 
     public void onDestroy() {
+        stopRenderThread();
+        bindSurfaceView(null);
+        synchronized (mSurfaceLock) {
+            mIsSurfaceReady = false;
+            if (mBackground != null) {
+                mBackground.recycle();
+                mBackground = null;
+            }
+        }
         mSkin.recycle();
         mScreen.recycle();
     }
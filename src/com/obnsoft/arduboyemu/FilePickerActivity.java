@@ -57,6 +57,7 @@ public class FilePickerActivity extends ListActivity {
 
     public static final String[] EXTS_FLASH = new String[] { EXT_HEX, EXT_ARDUBOY };
     public static final String[] EXTS_EEPROM = new String[] { EXT_EEPROM };
+    public static final String[] EXTS_MOVIE = new String[] { InputMovie.EXT_MOVIE };
 
     private String mDirTop;
     private String mDirCurrent;
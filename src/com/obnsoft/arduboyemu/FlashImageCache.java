@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache of flash images decoded from .hex files, so that restarting a program
+ * doesn't parse the text again.
+ * The images are kept in memory for recently used files, and as binary files
+ * named by the hash of .hex in the cache directory.
+ */
+public class FlashImageCache {
+
+    private static final int MAGIC = 0x41524246; // "ARBF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int MEMORY_ENTRIES = 4;
+    private static final String IMAGE_FILE_NAME_FORMAT = "%s.bin";
+
+    public static class Image {
+
+        public final byte[] hash;
+        public final byte[] flash;
+        public final int    bootBase;
+        private long        mLength;
+        private long        mLastModified;
+
+        private Image(byte[] hash, byte[] flash, int bootBase) {
+            this.hash = hash;
+            this.flash = flash;
+            this.bootBase = bootBase;
+        }
+    }
+
+    private File    mDir;
+    private Map<String, Image> mImages =
+            new LinkedHashMap<String, Image>(MEMORY_ENTRIES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    /**
+     * @param dir directory for the image files, or null to cache only in memory
+     */
+    public FlashImageCache(File dir) {
+        mDir = dir;
+        if (mDir != null && !mDir.exists()) {
+            mDir.mkdirs();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @return the decoded image, or null if failed
+     */
+    public synchronized Image get(String hexFilePath) {
+        File hexFile = new File(hexFilePath);
+        String key = hexFile.getAbsolutePath();
+        long length = hexFile.length();
+        long lastModified = hexFile.lastModified();
+        Image image = mImages.get(key);
+        if (image != null && image.mLength == length && image.mLastModified == lastModified) {
+            return image;
+        }
+
+        byte[] hash = getFileHash(hexFilePath);
+        if (hash == null) {
+            return null;
+        }
+        File imageFile = getImageFile(hash);
+        image = readImageFile(imageFile, hash);
+        if (image == null) {
+            byte[] flash = new byte[Native.FLASH_SIZE];
+            int bootBase = Native.readHexFile(hexFilePath, flash);
+            if (bootBase < 0) {
+                return null;
+            }
+            image = new Image(hash, flash, bootBase);
+            writeImageFile(imageFile, image);
+        }
+        image.mLength = length;
+        image.mLastModified = lastModified;
+        mImages.put(key, image);
+        return image;
+    }
+
+    public synchronized void clear() {
+        mImages.clear();
+        if (mDir != null) {
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return SHA-1 of the file, or null if failed
+     */
+    public static byte[] getFileHash(String path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            FileInputStream in = new FileInputStream(path);
+            try {
+                FileChannel channel = in.getChannel();
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                in.close();
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private File getImageFile(byte[] hash) {
+        if (mDir == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return new File(mDir, String.format(Locale.US, IMAGE_FILE_NAME_FORMAT, sb.toString()));
+    }
+
+    private static Image readImageFile(File file, byte[] hash) {
+        if (file == null || file.length() != HEADER_SIZE + Native.FLASH_SIZE) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    return null;
+                }
+                int bootBase = buffer.getInt();
+                byte[] flash = new byte[Native.FLASH_SIZE];
+                buffer.get(flash);
+                return new Image(hash, flash, bootBase);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void writeImageFile(File file, Image image) {
+        if (file == null) {
+            return;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(image.bootBase);
+                out.write(header.array());
+                out.write(image.flash);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        }
+    }
+}
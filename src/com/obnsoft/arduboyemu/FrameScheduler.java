@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+public class FrameScheduler {
+
+    /*  What to do when the emulation falls behind the schedule  */
+    public static final int POLICY_DROP = 0;        // emulate late frames without presenting
+    public static final int POLICY_CATCH_UP = 1;    // emulate and present without sleeping
+    public static final int POLICY_SLOW_DOWN = 2;   // give up the lost time
+
+    /*  Emulate as fast as possible  */
+    public static final int FPS_TURBO = 0;
+
+    protected static final long ONE_SECOND_NANOS = 1000000000L;
+    protected static final long ONE_MILLI_NANOS = 1000000L;
+    protected static final int  MAX_LAG_FRAMES = 8;
+
+    private static final long SPIN_THRESHOLD_NANOS = ONE_MILLI_NANOS;
+    private static final long TURBO_PRESENT_NANOS = ONE_SECOND_NANOS / 60;
+
+    private volatile int    mFps;
+    private volatile int    mPolicy = POLICY_DROP;
+    private volatile int    mTurboInterval;
+    private int     mCurrentFps;
+    private long    mBaseTime;
+    private long    mFrames;
+
+    /*-----------------------------------------------------------------------*/
+
+    public void setFps(int fps) {
+        mFps = fps;
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    public void setCatchUpPolicy(int policy) {
+        mPolicy = policy;
+    }
+
+    public int getCatchUpPolicy() {
+        return mPolicy;
+    }
+
+    public boolean isTurbo() {
+        return (mFps <= FPS_TURBO);
+    }
+
+    /**
+     * Set how often frames are presented in turbo mode.
+     *
+     * @param interval present one of every <i>interval</i> frames,
+     *        or 0 to present at most 60 frames per second
+     */
+    public void setTurboPresentInterval(int interval) {
+        mTurboInterval = interval;
+    }
+
+    /**
+     * Called from the emulation thread before the first frame.
+     */
+    public void start() {
+        mCurrentFps = 0;
+    }
+
+    /**
+     * Called from the emulation thread after the last frame.
+     */
+    public void stop() {
+        // do nothing
+    }
+
+    /**
+     * Wait until the time to emulate the next frame.
+     * Called from the emulation thread after each frame.
+     *
+     * @return true if the next frame should be presented
+     */
+    public boolean awaitNextFrame() {
+        int fps = mFps;
+        long currentTime = System.nanoTime();
+        if (fps <= FPS_TURBO) {
+            if (mCurrentFps != fps) {
+                mCurrentFps = fps;
+                mBaseTime = currentTime;
+                mFrames = 0;
+            }
+            return isTurboPresentFrame(currentTime);
+        }
+        if (fps != mCurrentFps) {
+            mCurrentFps = fps;
+            mBaseTime = currentTime;
+            mFrames = 0;
+            return true;
+        }
+
+        /*  The target is calculated from the base time so that errors don't accumulate  */
+        long targetTime = mBaseTime + ++mFrames * ONE_SECOND_NANOS / fps;
+        long lagTime = currentTime - targetTime;
+        if (lagTime < 0) {
+            sleepUntil(targetTime);
+            return true;
+        }
+        switch (getLatePolicy(lagTime * fps / ONE_SECOND_NANOS)) {
+        case POLICY_DROP:
+            return false;
+        case POLICY_CATCH_UP:
+            return true;
+        default:
+            mBaseTime = currentTime;
+            mFrames = 0;
+            return true;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private boolean isTurboPresentFrame(long currentTime) {
+        int interval = mTurboInterval;
+        if (interval > 0) {
+            return (++mFrames % interval == 0);
+        }
+        if (currentTime - mBaseTime >= TURBO_PRESENT_NANOS) {
+            mBaseTime = currentTime;
+            return true;
+        }
+        return false;
+    }
+
+    protected int getLatePolicy(long lagFrames) {
+        return (lagFrames >= MAX_LAG_FRAMES) ? POLICY_SLOW_DOWN : mPolicy;
+    }
+
+    protected static void sleepUntil(long targetTime) {
+        long remainTime = targetTime - System.nanoTime();
+
+        /*  Sleep coarsely, and then spin for the last fraction of a millisecond  */
+        if (remainTime > SPIN_THRESHOLD_NANOS) {
+            long sleepTime = remainTime - SPIN_THRESHOLD_NANOS;
+            try {
+                Thread.sleep(sleepTime / ONE_MILLI_NANOS, (int) (sleepTime % ONE_MILLI_NANOS));
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        }
+        while (System.nanoTime() < targetTime) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-frame timings of the emulation thread.
+ * Only the emulation thread writes samples, so no lock is needed; readers copy
+ * the recent samples and may see a frame being overwritten, which is harmless
+ * for statistics.
+ */
+public class FrameStats {
+
+    public static final int PHASE_RUN       = 0;    // avr_run() in native
+    public static final int PHASE_RENDER    = 1;    // rendering the framebuffer in native
+    public static final int PHASE_JNI       = 2;    // the rest of Native.step()
+    public static final int PHASE_REWIND    = 3;    // saving or loading the rewind state
+    public static final int PHASE_PRESENT   = 4;    // updating and drawing the view
+    public static final int PHASE_CAPTURE   = 5;    // GIF encoding
+    public static final int PHASE_WAIT      = 6;    // waiting for the next frame
+    public static final int PHASE_FRAME     = 7;    // whole frame
+    public static final int PHASE_MAX       = 8;
+
+    private static final String[] PHASE_NAMES = new String[] {
+            "run", "render", "jni", "rewind", "present", "capture", "wait", "frame"
+    };
+
+    private static final int RING_SIZE = 256; // must be power of 2
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private int[][]         mSamples = new int[PHASE_MAX][RING_SIZE];
+    private int[]           mCycles = new int[RING_SIZE];
+    private boolean[]       mIsSkipped = new boolean[RING_SIZE];
+    private volatile long   mFrames;
+    private volatile long   mSkippedFrames;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static class Summary {
+
+        public int      frames;
+        public long     totalFrames;
+        public long     skippedFrames;
+        public float    skipRatio;  // in the recent frames
+        public float    fps;
+        public float    emulatedMhz;
+        public int[]    p50 = new int[PHASE_MAX];
+        public int[]    p95 = new int[PHASE_MAX];
+        public int[]    p99 = new int[PHASE_MAX];
+        public int[]    max = new int[PHASE_MAX];
+
+        public String[] toLines() {
+            String[] lines = new String[PHASE_MAX + 1];
+            lines[0] = String.format(Locale.US, "%.1f fps  %.2f MHz  skip %.1f%% (%d/%d)",
+                    fps, emulatedMhz, skipRatio * 100f, skippedFrames, totalFrames);
+            for (int phase = 0; phase < PHASE_MAX; phase++) {
+                lines[phase + 1] = String.format(Locale.US,
+                        "%-8s %7.2f %7.2f %7.2f %7.2f ms", PHASE_NAMES[phase],
+                        p50[phase] / 1e6f, p95[phase] / 1e6f, p99[phase] / 1e6f,
+                        max[phase] / 1e6f);
+            }
+            return lines;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%-8s %7s %7s %7s %7s\n",
+                    "phase", "p50", "p95", "p99", "max"));
+            String[] lines = toLines();
+            for (int i = 1; i < lines.length; i++) {
+                sb.append(lines[i]).append('\n');
+            }
+            sb.append(lines[0]).append('\n');
+            return sb.toString();
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public void reset() {
+        mFrames = 0;
+        mSkippedFrames = 0;
+    }
+
+    public void record(int phase, long nanos) {
+        mSamples[phase][(int) mFrames & RING_MASK] =
+                (int) Math.min(Math.max(nanos, 0), Integer.MAX_VALUE);
+    }
+
+    public void commitFrame(int cycles, boolean isPresented) {
+        int index = (int) mFrames & RING_MASK;
+        mCycles[index] = cycles;
+        mIsSkipped[index] = !isPresented;
+        if (!isPresented) {
+            mSkippedFrames++;
+        }
+        mFrames++; // publishes the samples of this frame
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public Summary summarize() {
+        Summary summary = new Summary();
+        long totalFrames = mFrames;
+        int count = (int) Math.min(totalFrames, RING_SIZE);
+        summary.frames = count;
+        summary.totalFrames = totalFrames;
+        summary.skippedFrames = mSkippedFrames;
+        if (count == 0) {
+            return summary;
+        }
+
+        int start = (int) (totalFrames - count) & RING_MASK;
+        int[] work = new int[count];
+        long totalNanos = 0;
+        for (int phase = 0; phase < PHASE_MAX; phase++) {
+            for (int i = 0; i < count; i++) {
+                work[i] = mSamples[phase][(start + i) & RING_MASK];
+            }
+            Arrays.sort(work);
+            summary.p50[phase] = work[(count - 1) * 50 / 100];
+            summary.p95[phase] = work[(count - 1) * 95 / 100];
+            summary.p99[phase] = work[(count - 1) * 99 / 100];
+            summary.max[phase] = work[count - 1];
+            if (phase == PHASE_FRAME) {
+                for (int i = 0; i < count; i++) {
+                    totalNanos += work[i];
+                }
+            }
+        }
+        long totalCycles = 0;
+        int skippedFrames = 0;
+        for (int i = 0; i < count; i++) {
+            totalCycles += mCycles[(start + i) & RING_MASK];
+            if (mIsSkipped[(start + i) & RING_MASK]) {
+                skippedFrames++;
+            }
+        }
+        summary.skipRatio = (float) skippedFrames / count;
+        if (totalNanos > 0) {
+            summary.fps = count * 1e9f / totalNanos;
+            summary.emulatedMhz = totalCycles * 1e3f / totalNanos;
+        }
+        return summary;
+    }
+
+    public String dump() {
+        return summarize().toString();
+    }
+}
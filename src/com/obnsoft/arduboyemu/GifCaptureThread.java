@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encodes captured frames into GIF on a dedicated thread.
+ *
+ * Frames are timestamped by emulated time, and only frames which GIF can
+ * display are sampled, so the recording plays at the real speed of the game
+ * whatever the emulation speed is.
+ * Sampled frames are copied into a fixed set of buffers which go round between
+ * the emulation thread and the encoder thread, so capturing allocates nothing
+ * per frame. When all buffers are waiting to be encoded, the frame is dropped
+ * or the emulation thread waits for a buffer, according to the policy.
+ */
+public class GifCaptureThread {
+
+    public static final int POLICY_DROP = 0;
+    public static final int POLICY_BLOCK = 1;
+
+    private static final int QUEUE_SIZE = 32;
+    private static final int HUNDREDTHS = 100;
+
+    private static class Frame {
+
+        ByteBuffer  packed = ByteBuffer.allocate(PackedScreen.SIZE);
+        long        time;   // in hundredths of a second
+    }
+
+    private static final Frame END_OF_FRAMES = new Frame();
+
+    public static class Stats {
+
+        public long     queuedFrames;
+        public long     skippedFrames;  // not sampled
+        public long     droppedFrames;  // by the policy
+        public long     encodedFrames;
+        public int      depth;
+        public int      maxDepth;
+        public float    averageDepth;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "gif q %d/%d avg %.1f max %d skip %d drop %d",
+                    depth, QUEUE_SIZE, averageDepth, maxDepth, skippedFrames, droppedFrames);
+        }
+    }
+
+    private GifEncoder  mEncoder = new GifEncoder();
+    private BlockingQueue<Frame>    mFilledFrames = new ArrayBlockingQueue<Frame>(QUEUE_SIZE + 1);
+    private BlockingQueue<Frame>    mFreeFrames = new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+    private Thread      mThread;
+    private int         mPolicy = POLICY_BLOCK;
+    private volatile boolean mIsFailed;
+
+    /*  Written by the emulation thread only  */
+    private long            mCycles;
+    private long            mNextSampleTime;
+    private volatile long   mQueuedFrames;
+    private volatile long   mSkippedFrames;
+    private volatile long   mDroppedFrames;
+    private volatile long   mDepthSum;
+    private volatile int    mMaxDepth;
+    /*  Written by the encoder thread only  */
+    private volatile long   mEncodedFrames;
+
+    public GifCaptureThread() {
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            mFreeFrames.add(new Frame());
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public void setPolicy(int policy) {
+        mPolicy = policy;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    public boolean isStarted() {
+        return (mThread != null);
+    }
+
+    public synchronized boolean start(File workFile) {
+        if (mThread != null || !mEncoder.start(workFile)) {
+            return false;
+        }
+        mIsFailed = false;
+        mCycles = 0;
+        mNextSampleTime = 0;
+        mQueuedFrames = 0;
+        mSkippedFrames = 0;
+        mDroppedFrames = 0;
+        mDepthSum = 0;
+        mMaxDepth = 0;
+        mEncodedFrames = 0;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeFrames();
+            }
+        });
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+        return true;
+    }
+
+    /**
+     * Queue a frame to be encoded. Called by the emulation thread.
+     *
+     * @param cycles emulated cycles since the previous frame
+     * @return false if the frame is skipped or dropped
+     */
+    public synchronized boolean addFrame(ByteBuffer packed, int cycles) {
+        if (mThread == null || mIsFailed || !PackedScreen.isValid(packed)) {
+            return false; // don't wait for an encoder which has given up
+        }
+        mCycles += cycles;
+        long time = mCycles * HUNDREDTHS / Native.CYCLES_PER_SECOND;
+        if (time < mNextSampleTime) {
+            mSkippedFrames++;
+            return false;
+        }
+
+        Frame frame;
+        if (mPolicy == POLICY_DROP) {
+            frame = mFreeFrames.poll();
+        } else {
+            try {
+                frame = mFreeFrames.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                frame = null;
+            }
+        }
+        if (frame == null) {
+            mDroppedFrames++; // the next frame will be sampled instead
+            return false;
+        }
+        packed.position(0);
+        frame.packed.position(0);
+        frame.packed.put(packed);
+        packed.position(0);
+        frame.packed.position(0);
+        frame.time = time;
+        mFilledFrames.add(frame);
+        mNextSampleTime = time + GifEncoder.DELAY_MIN;
+
+        int depth = mFilledFrames.size();
+        mQueuedFrames++;
+        mDepthSum += depth;
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Encode all queued frames and close the file.
+     */
+    public synchronized boolean finish(File file) {
+        if (mThread == null) {
+            return false;
+        }
+        mFilledFrames.add(END_OF_FRAMES);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mThread = null;
+        boolean ret = mEncoder.finish(file);
+        if (mIsFailed) {
+            file.delete();
+            ret = false;
+        }
+        return ret;
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.queuedFrames = mQueuedFrames;
+        stats.skippedFrames = mSkippedFrames;
+        stats.droppedFrames = mDroppedFrames;
+        stats.encodedFrames = mEncodedFrames;
+        stats.depth = mFilledFrames.size();
+        stats.maxDepth = mMaxDepth;
+        if (stats.queuedFrames > 0) {
+            stats.averageDepth = (float) mDepthSum / stats.queuedFrames;
+        }
+        return stats;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void encodeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = mFilledFrames.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if (frame == END_OF_FRAMES) {
+                break;
+            }
+            /*  Keep draining after a failure so that the emulation thread isn't blocked  */
+            try {
+                if (!mIsFailed && !mEncoder.addFrame(frame.packed, frame.time)) {
+                    mIsFailed = true;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                mIsFailed = true;
+            }
+            mEncodedFrames++;
+            mFreeFrames.add(frame);
+        }
+    }
+}
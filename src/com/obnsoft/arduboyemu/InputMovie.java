@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-frame button masks from a reset, which reproduce the emulation exactly.
+ * The masks are kept as runs of the same value, and the movie also holds what
+ * the emulation depends on: the hash of the program, the initial EEPROM and
+ * the emulation options.
+ */
+public class InputMovie {
+
+    public static final String EXT_MOVIE = ".abm";
+    public static final int REPLAY_END = -1;
+    public static final int HASH_SIZE = 20;
+
+    private static final int MAGIC = 0x4152424D; // "ARBM"
+    private static final int VERSION = 1;
+    private static final int FLAG_TUNED = 1;
+    private static final int FLAG_POST_REFRESH = 2;
+    private static final int RUN_LENGTH_MAX = 0xFFFF;
+    private static final int INITIAL_RUNS = 256;
+
+    private byte[]      mHexHash;
+    private byte[]      mEeprom;
+    private boolean     mIsTuned;
+    private boolean     mIsPostRefresh;
+
+    private byte[]      mMasks = new byte[INITIAL_RUNS];
+    private int[]       mLengths = new int[INITIAL_RUNS];
+    private int         mRuns;
+    private int         mFrames;
+
+    private int         mReplayRun;
+    private int         mReplayCount;
+    private int         mReplayFrames;
+
+    public InputMovie(byte[] hexHash, byte[] eeprom, boolean isTuned, boolean isPostRefresh) {
+        mHexHash = hexHash.clone();
+        mEeprom = eeprom.clone();
+        mIsTuned = isTuned;
+        mIsPostRefresh = isPostRefresh;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public byte[] getHexHash() {
+        return mHexHash;
+    }
+
+    public byte[] getEeprom() {
+        return mEeprom;
+    }
+
+    public boolean isTuned() {
+        return mIsTuned;
+    }
+
+    public boolean isPostRefresh() {
+        return mIsPostRefresh;
+    }
+
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    public boolean isMatched(byte[] hexHash) {
+        return Arrays.equals(mHexHash, hexHash);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public void record(int buttonMask) {
+        if (mRuns > 0 && mMasks[mRuns - 1] == (byte) buttonMask
+                && mLengths[mRuns - 1] < RUN_LENGTH_MAX) {
+            mLengths[mRuns - 1]++;
+        } else {
+            appendRun((byte) buttonMask, 1);
+        }
+        mFrames++;
+    }
+
+    public void startReplay() {
+        mReplayRun = 0;
+        mReplayCount = 0;
+        mReplayFrames = 0;
+    }
+
+    /**
+     * @return the button mask of the next frame, or {@link #REPLAY_END}
+     */
+    public int nextReplay() {
+        if (mReplayRun >= mRuns) {
+            return REPLAY_END;
+        }
+        int buttonMask = mMasks[mReplayRun] & 0xFF;
+        if (++mReplayCount >= mLengths[mReplayRun]) {
+            mReplayRun++;
+            mReplayCount = 0;
+        }
+        mReplayFrames++;
+        return buttonMask;
+    }
+
+    public int getReplayFrames() {
+        return mReplayFrames;
+    }
+
+    /**
+     * Emulate all frames of the movie from the current state.
+     *
+     * @return the number of emulated frames
+     */
+    public int replay(EmulatorCore core) {
+        startReplay();
+        int buttonMask;
+        while ((buttonMask = nextReplay()) != REPLAY_END) {
+            if (core.step(buttonMask) == Native.LOOP_FAILED) {
+                break;
+            }
+        }
+        return mReplayFrames;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public boolean write(File file) {
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeByte(((mIsTuned) ? FLAG_TUNED : 0)
+                        | ((mIsPostRefresh) ? FLAG_POST_REFRESH : 0));
+                out.write(mHexHash);
+                out.writeShort(mEeprom.length);
+                out.write(mEeprom);
+                out.writeInt(mRuns);
+                for (int i = 0; i < mRuns; i++) {
+                    out.writeByte(mMasks[i]);
+                    out.writeShort(mLengths[i]);
+                }
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return false;
+        }
+    }
+
+    /**
+     * @return the movie, or null if failed
+     */
+    public static InputMovie read(File file) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                    return null;
+                }
+                int flags = in.readUnsignedByte();
+                byte[] hexHash = new byte[HASH_SIZE];
+                in.readFully(hexHash);
+                byte[] eeprom = new byte[in.readUnsignedShort()];
+                in.readFully(eeprom);
+                InputMovie movie = new InputMovie(hexHash, eeprom,
+                        (flags & FLAG_TUNED) != 0, (flags & FLAG_POST_REFRESH) != 0);
+                int runs = in.readInt();
+                for (int i = 0; i < runs; i++) {
+                    byte buttonMask = in.readByte();
+                    int length = in.readUnsignedShort();
+                    if (length > 0) {
+                        movie.appendRun(buttonMask, length);
+                        movie.mFrames += length;
+                    }
+                }
+                return movie;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void appendRun(byte buttonMask, int length) {
+        if (mRuns == mMasks.length) {
+            mMasks = Arrays.copyOf(mMasks, mRuns * 2);
+            mLengths = Arrays.copyOf(mLengths, mRuns * 2);
+        }
+        mMasks[mRuns] = buttonMask;
+        mLengths[mRuns] = length;
+        mRuns++;
+    }
+}
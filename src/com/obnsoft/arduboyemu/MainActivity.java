@@ -30,9 +30,13 @@ import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.text.format.DateFormat;
 import android.view.Menu;
+import android.view.MotionEvent;
 import android.view.MenuItem;
+import android.view.SurfaceView;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ImageButton;
@@ -42,7 +46,9 @@ import android.widget.Spinner;
 public class MainActivity extends Activity {
 
     private static final int REQUEST_OPEN_FLASH = 1;
+    private static final int REQUEST_OPEN_MOVIE = 2;
     private static final String FLASH_WORK_FILE_NAME = "work.hex";
+    private static final String STATE_TIME_FORMAT = "yyyy/MM/dd kk:mm:ss";
 
     private MyApplication       mApp;
     private ArduboyEmulator     mArduboyEmulator;
@@ -62,10 +68,26 @@ public class MainActivity extends Activity {
         mArduboyEmulator = mApp.getArduboyEmulator();
 
         mEmulatorScreenView = (EmulatorScreenView) findViewById(R.id.emulatorScreenView);
+        mEmulatorScreenView.bindSurfaceView((SurfaceView) findViewById(R.id.emulatorSurfaceView));
         mLayoutToolbar = (RelativeLayout) findViewById(R.id.relativeLayoutToolBar);
         mSpinnerToolFps = (Spinner) findViewById(R.id.spinnerToolFps);
         mButtonToolCaptureMovie = (ImageButton) findViewById(R.id.buttonToolCaptureMovie);
 
+        findViewById(R.id.buttonToolRewind).setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    mArduboyEmulator.setRewinding(true);
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    mArduboyEmulator.setRewinding(false);
+                    break;
+                }
+                return false; // let the button show its pressed state
+            }
+        });
         mSpinnerToolFps.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
@@ -78,6 +100,9 @@ public class MainActivity extends Activity {
             }
         });
 
+        if (mApp.getResumeOnStart()) {
+            mCurrentPath = mArduboyEmulator.restoreEmulation();
+        }
         Intent intent = getIntent();
         if (intent != null) {
             handleIntent(intent);
@@ -109,6 +134,32 @@ public class MainActivity extends Activity {
         case R.id.menuMainEeprom:
             startActivity(new Intent(this, EepromActivity.class));
             return true;
+        case R.id.menuMainSaveState:
+            showStateSlotDialog(true);
+            return true;
+        case R.id.menuMainLoadState:
+            showStateSlotDialog(false);
+            return true;
+        case R.id.menuMainRecordMovie:
+            if (mArduboyEmulator.getMovieMode() == ArduboyEmulator.MOVIE_RECORDING) {
+                mArduboyEmulator.stopRecording();
+            } else if (!mArduboyEmulator.startRecording()) {
+                Utils.showToast(this, R.string.messageEmulateFailed);
+            }
+            return true;
+        case R.id.menuMainReplayMovie:
+            if (mArduboyEmulator.getMovieMode() == ArduboyEmulator.MOVIE_REPLAYING) {
+                mArduboyEmulator.stopReplay();
+            } else if (mCurrentPath != null) {
+                intent = new Intent(this, FilePickerActivity.class);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_EXTENSIONS,
+                        FilePickerActivity.EXTS_MOVIE);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_WRITEMODE, false);
+                intent.putExtra(FilePickerActivity.INTENT_EXTRA_DIRECTORY,
+                        ArduboyEmulator.getMovieDirPath());
+                startActivityForResult(intent, REQUEST_OPEN_MOVIE);
+            }
+            return true;
         case R.id.menuMainSettings:
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
@@ -126,6 +177,14 @@ public class MainActivity extends Activity {
                 startEmulation(path);
             }
             break;
+        case REQUEST_OPEN_MOVIE:
+            if (resultCode == RESULT_OK) {
+                String path = data.getStringExtra(FilePickerActivity.INTENT_EXTRA_SELECTPATH);
+                if (!mArduboyEmulator.startReplay(path)) {
+                    Utils.showToast(this, R.string.messageLoadFailed);
+                }
+            }
+            break;
         }
     }
 
@@ -159,6 +218,20 @@ public class MainActivity extends Activity {
         mLayoutToolbar.setVisibility((mApp.getShowToolbar()) ? View.VISIBLE : View.INVISIBLE);
         mSpinnerToolFps.setSelection(mApp.getEmulationFpsItemPos(), false);
         refreshCaptureVideoButtonColor();
+        mEmulatorScreenView.setSurfaceMode(mApp.getDrawOnSurface());
+        FrameScheduler scheduler;
+        if (mApp.getVsyncAlignment() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+            scheduler = new VsyncFrameScheduler(refreshRate);
+        } else {
+            scheduler = new FrameScheduler();
+        }
+        scheduler.setCatchUpPolicy(mApp.getCatchUpPolicy());
+        mArduboyEmulator.setFrameScheduler(scheduler);
+        mArduboyEmulator.setFps(mApp.getEmulationFps()); // the spinner notifies it only later
+        mArduboyEmulator.setFrameSkip(mApp.getFrameSkip());
+        mArduboyEmulator.setCaptureDropFrames(mApp.getCaptureDropFrames());
+        mArduboyEmulator.setStatsOverlay(mApp.getShowFrameStats());
         mArduboyEmulator.bindEmulatorView(mEmulatorScreenView);
         mArduboyEmulator.startEmulation();
     }
@@ -173,7 +246,7 @@ public class MainActivity extends Activity {
     }
 
     public void onClickReset(View v) {
-        if (mArduboyEmulator.isEmulating()) {
+        if (mArduboyEmulator.isEmulating() && !mArduboyEmulator.resetEmulation()) {
             startEmulation(mCurrentPath);
         }
     }
@@ -257,6 +330,30 @@ public class MainActivity extends Activity {
         }
     }
 
+    private void showStateSlotDialog(final boolean isSave) {
+        if (!mArduboyEmulator.isEmulating()) {
+            return;
+        }
+        String[] items = new String[ArduboyEmulator.STATE_SLOT_MAX];
+        for (int slot = 0; slot < ArduboyEmulator.STATE_SLOT_MAX; slot++) {
+            long time = mArduboyEmulator.getStateSlotTime(slot);
+            String label = (time > 0) ? DateFormat.format(STATE_TIME_FORMAT, time).toString()
+                    : getString(R.string.messageStateEmpty);
+            items[slot] = getString(R.string.messageStateSlot, slot + 1, label);
+        }
+        Utils.showListDialog(this, 0, (isSave) ? R.string.menuSaveState : R.string.menuLoadState,
+                items, new OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (isSave) {
+                            mArduboyEmulator.requestSaveState(which);
+                        } else {
+                            mArduboyEmulator.requestLoadState(which);
+                        }
+                    }
+        });
+    }
+
     private void refreshCaptureVideoButtonColor() {
         if (mArduboyEmulator.isEmulating()) {
             if (mArduboyEmulator.isCapturing()) {
@@ -37,6 +37,13 @@ public class MyApplication extends Application {
     private static final String PREFS_KEY_FPS           = "fps";
     private static final String PREFS_KEY_REFRESH       = "refresh";
     private static final String PREFS_KEY_TUNING        = "tuning";
+    private static final String PREFS_KEY_SURFACE       = "surface";
+    private static final String PREFS_KEY_VSYNC         = "vsync";
+    private static final String PREFS_KEY_CATCHUP       = "catch_up";
+    private static final String PREFS_KEY_STATS         = "stats";
+    private static final String PREFS_KEY_FRAMESKIP     = "frame_skip";
+    private static final String PREFS_KEY_CAPTUREDROP   = "capture_drop";
+    private static final String PREFS_KEY_RESUME        = "resume";
     private static final String PREFS_KEY_CONFIRMQUIT   = "confirm_quit";
     private static final String PREFS_KEY_PATH_FLASH    = "path_flash";
     private static final String PREFS_KEY_PATH_EEPROM   = "path_eeprom";
@@ -45,6 +52,13 @@ public class MyApplication extends Application {
     private static final String PREFS_DEFAULT_FPS       = "60";
     private static final boolean PREFS_DEFAULT_REFRESH  = false;
     private static final boolean PREFS_DEFAULT_TUNING   = false;
+    private static final boolean PREFS_DEFAULT_SURFACE  = false;
+    private static final boolean PREFS_DEFAULT_VSYNC    = false;
+    private static final String PREFS_DEFAULT_CATCHUP   = "0";
+    private static final boolean PREFS_DEFAULT_STATS    = false;
+    private static final boolean PREFS_DEFAULT_FRAMESKIP = false;
+    private static final boolean PREFS_DEFAULT_CAPTUREDROP = true;
+    private static final boolean PREFS_DEFAULT_RESUME   = true;
     private static final boolean PREFS_DEFAULT_CONFIRMQUIT = true;
 
     private ArduboyEmulator     mArduboyEmulator;
@@ -123,6 +137,35 @@ public class MyApplication extends Application {
         return getSharedPreferences().getBoolean(PREFS_KEY_TUNING, PREFS_DEFAULT_TUNING);
     }
 
+    public boolean getDrawOnSurface() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_SURFACE, PREFS_DEFAULT_SURFACE);
+    }
+
+    public boolean getVsyncAlignment() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_VSYNC, PREFS_DEFAULT_VSYNC);
+    }
+
+    public int getCatchUpPolicy() {
+        return Integer.parseInt(
+                getSharedPreferences().getString(PREFS_KEY_CATCHUP, PREFS_DEFAULT_CATCHUP));
+    }
+
+    public boolean getFrameSkip() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_FRAMESKIP, PREFS_DEFAULT_FRAMESKIP);
+    }
+
+    public boolean getCaptureDropFrames() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_CAPTUREDROP, PREFS_DEFAULT_CAPTUREDROP);
+    }
+
+    public boolean getShowFrameStats() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_STATS, PREFS_DEFAULT_STATS);
+    }
+
+    public boolean getResumeOnStart() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_RESUME, PREFS_DEFAULT_RESUME);
+    }
+
     public boolean getConfirmQuit() {
         return getSharedPreferences().getBoolean(PREFS_KEY_CONFIRMQUIT, PREFS_DEFAULT_CONFIRMQUIT);
     }
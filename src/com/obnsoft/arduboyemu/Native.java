@@ -18,6 +18,8 @@
 
 package com.obnsoft.arduboyemu;
 
+import java.nio.ByteBuffer;
+
 public class Native {
 
     public static final int BUTTON_UP   = 0;
@@ -28,16 +30,69 @@ public class Native {
     public static final int BUTTON_B    = 5;
     public static final int BUTTON_MAX  = 6;
 
+    public static final int LOOP_FAILED = -1;
+
+    public static final int FLASH_SIZE  = 32 * 1024;
+
+    /* One refresh period of the native core is 1/60 second of emulated time */
+    public static final int CYCLES_PER_FRAME    = 256000;
+    public static final int CYCLES_PER_SECOND   = CYCLES_PER_FRAME * 60;
+
+    public static final int CPU_STATE_NONE      = 0;
+    public static final int CPU_STATE_RUNNING   = 1;
+    public static final int CPU_STATE_SLEEPING  = 2;
+    public static final int CPU_STATE_DONE      = 3;
+    public static final int CPU_STATE_CRASHED   = 4;
+
+    public static final int FRAMEBUFFER_ARGB    = 0;
+    public static final int FRAMEBUFFER_PACKED  = 1;
+
+    public static final int PACKED_FLAGS    = 1024;
+    public static final int PACKED_CONTRAST = 1025;
+    public static final int PACKED_SIZE     = 1028;
+
+    public static final int PACKED_FLAG_DISPLAY_ON  = 1;
+    public static final int PACKED_FLAG_INVERTED    = 2;
+    public static final int PACKED_FLAG_FLIP_X      = 4;
+    public static final int PACKED_FLAG_FLIP_Y      = 8;
+
+    public static final int STATUS_LED_RED  = 0;
+    public static final int STATUS_LED_GREEN= 1;
+    public static final int STATUS_LED_BLUE = 2;
+    public static final int STATUS_LED_RX   = 3;
+    public static final int STATUS_LED_TX   = 4;
+    public static final int STATUS_RUN_NANOS    = 5;
+    public static final int STATUS_RENDER_NANOS = 6;
+    public static final int STATUS_CYCLES       = 7;
+    public static final int STATUS_MAX      = 8;
+
     static {
         System.loadLibrary("ArduboyEmulatorNative");
     }
 
-    public static native boolean setup(String hexFilePath, boolean isTuned);
-    public static native boolean getEeprom(byte[] ary);
-    public static native boolean setEeprom(byte[] ary);
-    public static native boolean setRefreshTiming(boolean isPostpone);
-    public static native boolean buttonEvent(int key, boolean isPress);
-    public static native boolean loop(int[] pixels);
-    public static native boolean getLedState(int[] leds);
-    public static native void teardown();
+    /*
+     * Each machine is identified by the handle returned by create(), and
+     * different machines can run in parallel threads.
+     */
+    public static native long create();
+    public static native void destroy(long handle);
+    public static native int readHexFile(String hexFilePath, byte[] flash);
+    public static native boolean setup(long handle, String hexFilePath, boolean isTuned);
+    public static native boolean setupFlash(long handle, byte[] flash, int bootBase,
+            boolean isTuned);
+    public static native boolean reset(long handle);
+    public static native boolean getEeprom(long handle, byte[] ary);
+    public static native boolean setEeprom(long handle, byte[] ary);
+    public static native int getStateSize(long handle);
+    public static native boolean saveState(long handle, byte[] ary);
+    public static native boolean loadState(long handle, byte[] ary);
+    public static native boolean setRefreshTiming(long handle, boolean isPostpone);
+    public static native boolean buttonEvent(long handle, int key, boolean isPress);
+    public static native boolean attachFramebuffer(long handle, ByteBuffer buffer, int format);
+    public static native boolean attachStatus(long handle, ByteBuffer status);
+    public static native int loop(long handle);
+    public static native int step(long handle, int buttonMask);
+    public static native boolean getLedState(long handle, int[] leds);
+    public static native int getCpuState(long handle);
+    public static native void teardown(long handle);
 }
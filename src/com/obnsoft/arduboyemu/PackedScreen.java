@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Expands the packed framebuffer (page-ordered 1-bit VRAM followed by the
+ * display flags and the contrast) into pixels.
+ */
+public class PackedScreen {
+
+    public static final int WIDTH = 128;
+    public static final int HEIGHT = 64;
+    public static final int PIXELS = WIDTH * HEIGHT;
+    public static final int SIZE = Native.PACKED_SIZE;
+    public static final int PAGES = HEIGHT / 8;
+    public static final int ALL_PAGES = (1 << PAGES) - 1;
+
+    private static final int COLOR_BLACK = 0xFF000000;
+
+    public static boolean isValid(ByteBuffer packed) {
+        return (packed != null && packed.capacity() >= SIZE);
+    }
+
+    public static boolean isDisplayOn(ByteBuffer packed) {
+        return (packed.get(Native.PACKED_FLAGS) & Native.PACKED_FLAG_DISPLAY_ON) != 0;
+    }
+
+    /**
+     * Expands to ARGB pixels as same as the native renderer does.
+     */
+    public static void toPixels(ByteBuffer packed, IntBuffer pixels) {
+        toPixels(packed, pixels, ALL_PAGES);
+    }
+
+    /**
+     * Expands only rows of the pages marked in <code>dirtyPages</code>, the
+     * other rows of <code>pixels</code> are left as they are.
+     * While the display is off, nothing is expanded and the last frame stays.
+     */
+    public static void toPixels(ByteBuffer packed, IntBuffer pixels, int dirtyPages) {
+        int flags = packed.get(Native.PACKED_FLAGS);
+        if ((flags & Native.PACKED_FLAG_DISPLAY_ON) == 0) {
+            return;
+        }
+
+        // Typically the screen will be clearly visible even at 0 contrast
+        float opacity = (packed.get(Native.PACKED_CONTRAST) & 0xFF) / 512f + 0.5f;
+        int level = (int) (255 * opacity);
+        int grayColor = COLOR_BLACK | level << 16 | level << 8 | level;
+        boolean isInverted = ((flags & Native.PACKED_FLAG_INVERTED) != 0);
+        int fgColor = isInverted ? COLOR_BLACK : grayColor;
+        int bgColor = isInverted ? grayColor : COLOR_BLACK;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            int srcY = ((flags & Native.PACKED_FLAG_FLIP_Y) != 0) ? HEIGHT - 1 - y : y;
+            if ((dirtyPages & 1 << (srcY / 8)) == 0) {
+                continue;
+            }
+            int offset = (srcY / 8) * WIDTH;
+            int shift = srcY % 8;
+            int i = y * WIDTH;
+            for (int x = 0; x < WIDTH; x++) {
+                int srcX = ((flags & Native.PACKED_FLAG_FLIP_X) != 0) ? WIDTH - 1 - x : x;
+                boolean isLit = ((packed.get(offset + srcX) >> shift & 1) != 0);
+                pixels.put(i++, isLit ? fgColor : bgColor);
+            }
+        }
+    }
+
+    /**
+     * Expands to color indices, 0 for black and 1 for white.
+     */
+    public static void toIndexedPixels(ByteBuffer packed, byte[] indexedPixels) {
+        int flags = packed.get(Native.PACKED_FLAGS);
+        if ((flags & Native.PACKED_FLAG_DISPLAY_ON) == 0) {
+            for (int i = 0; i < PIXELS; i++) {
+                indexedPixels[i] = 0;
+            }
+            return;
+        }
+
+        int invert = ((flags & Native.PACKED_FLAG_INVERTED) != 0) ? 1 : 0;
+        int i = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int srcY = ((flags & Native.PACKED_FLAG_FLIP_Y) != 0) ? HEIGHT - 1 - y : y;
+            int offset = (srcY / 8) * WIDTH;
+            int shift = srcY % 8;
+            for (int x = 0; x < WIDTH; x++) {
+                int srcX = ((flags & Native.PACKED_FLAG_FLIP_X) != 0) ? WIDTH - 1 - x : x;
+                indexedPixels[i++] = (byte) ((packed.get(offset + srcX) >> shift & 1) ^ invert);
+            }
+        }
+    }
+
+}
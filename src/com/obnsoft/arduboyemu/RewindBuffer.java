@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+/**
+ * Fixed-size ring of machine states for rewinding.
+ *
+ * Each state is stored as run-length encoded XOR against a reference; a
+ * keyframe refers to the first state pushed, and the states in between refer
+ * to the latest keyframe. So any state is restored with one decoding pass, and
+ * the oldest states are discarded when the buffer is full.
+ */
+public class RewindBuffer {
+
+    private byte[]      mData;
+    private int         mDataTail;      // where the next record is written
+    private int         mUsedBytes;
+
+    private int[]       mOffsets;
+    private int[]       mLengths;
+    private boolean[]   mIsKey;
+    private int         mHead;          // index of the oldest record
+    private int         mCount;
+
+    private int         mKeyInterval;
+    private int         mFramesFromKey;
+    private byte[]      mBase;
+    private byte[]      mKeyState;
+    private byte[]      mWork;
+
+    public RewindBuffer(int capacityBytes, int maxFrames, int keyInterval) {
+        mData = new byte[capacityBytes];
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+        mIsKey = new boolean[maxFrames];
+        mKeyInterval = keyInterval;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public synchronized void clear() {
+        mDataTail = 0;
+        mUsedBytes = 0;
+        mHead = 0;
+        mCount = 0;
+        mFramesFromKey = 0;
+        mBase = null;
+        mKeyState = null;
+    }
+
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    public int getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public synchronized void push(byte[] state) {
+        if (mBase == null || mBase.length != state.length) {
+            clear();
+            mBase = state.clone();
+            mKeyState = new byte[state.length];
+            mWork = new byte[getMaxEncodedLength(state.length)];
+        }
+        boolean isKey = (mCount == 0 || mFramesFromKey >= mKeyInterval);
+        int length = encode(state, (isKey) ? mBase : mKeyState, mWork);
+
+        /*  Discard the oldest group of states entirely, with its keyframe  */
+        while (mCount > 0 && (mCount == mOffsets.length || mData.length - mUsedBytes < length)) {
+            do {
+                removeOldest();
+            } while (mCount > 0 && !mIsKey[mHead]);
+        }
+        if (mCount == 0) {
+            mDataTail = 0;
+            if (!isKey) {
+                isKey = true;
+                length = encode(state, mBase, mWork);
+            }
+        }
+        if (length > mData.length) {
+            return;
+        }
+
+        int index = (mHead + mCount) % mOffsets.length;
+        mOffsets[index] = mDataTail;
+        mLengths[index] = length;
+        mIsKey[index] = isKey;
+        copyToRing(mWork, length, mDataTail);
+        mDataTail = (mDataTail + length) % mData.length;
+        mUsedBytes += length;
+        mCount++;
+        if (isKey) {
+            System.arraycopy(state, 0, mKeyState, 0, state.length);
+            mFramesFromKey = 1;
+        } else {
+            mFramesFromKey++;
+        }
+    }
+
+    /**
+     * Remove the newest state and decode it into the array.
+     *
+     * @param state an array of the same size as the pushed states
+     * @return false if the buffer is empty
+     */
+    public synchronized boolean pop(byte[] state) {
+        if (mCount == 0 || state.length != mBase.length) {
+            return false;
+        }
+        int index = (mHead + mCount - 1) % mOffsets.length;
+        decode(index, (mIsKey[index]) ? mBase : mKeyState, state);
+        mCount--;
+        mUsedBytes -= mLengths[index];
+        mDataTail = mOffsets[index];
+
+        /*  Find the keyframe which the next newest state refers to  */
+        if (mIsKey[index]) {
+            mFramesFromKey = 0;
+            for (int i = mCount - 1; i >= 0; i--) {
+                int keyIndex = (mHead + i) % mOffsets.length;
+                mFramesFromKey++;
+                if (mIsKey[keyIndex]) {
+                    decode(keyIndex, mBase, mKeyState);
+                    break;
+                }
+            }
+        } else {
+            mFramesFromKey--;
+        }
+        return true;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void removeOldest() {
+        mUsedBytes -= mLengths[mHead];
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+    }
+
+    private void copyToRing(byte[] src, int length, int offset) {
+        int firstLength = Math.min(length, mData.length - offset);
+        System.arraycopy(src, 0, mData, offset, firstLength);
+        System.arraycopy(src, firstLength, mData, 0, length - firstLength);
+    }
+
+    private void copyFromRing(int offset, int length, byte[] dst) {
+        int firstLength = Math.min(length, mData.length - offset);
+        System.arraycopy(mData, offset, dst, 0, firstLength);
+        System.arraycopy(mData, 0, dst, firstLength, length - firstLength);
+    }
+
+    private static int getMaxEncodedLength(int length) {
+        return length + length / 2 + 8; // alternating single-byte runs are the worst
+    }
+
+    /**
+     * Each run is a pair of a zero count and a literal count (both in 1 or 2
+     * bytes) followed by the literal bytes of XOR.
+     */
+    private static int encode(byte[] state, byte[] reference, byte[] out) {
+        int pos = 0;
+        int i = 0;
+        int length = state.length;
+        while (i < length) {
+            int zeroStart = i;
+            while (i < length && state[i] == reference[i] && i - zeroStart < 0x7FFF) {
+                i++;
+            }
+            int literalStart = i;
+            while (i < length && state[i] != reference[i] && i - literalStart < 0x7FFF) {
+                i++;
+            }
+            pos = writeCount(out, pos, literalStart - zeroStart);
+            pos = writeCount(out, pos, i - literalStart);
+            for (int j = literalStart; j < i; j++) {
+                out[pos++] = (byte) (state[j] ^ reference[j]);
+            }
+        }
+        return pos;
+    }
+
+    private void decode(int index, byte[] reference, byte[] state) {
+        int length = mLengths[index];
+        copyFromRing(mOffsets[index], length, mWork);
+        System.arraycopy(reference, 0, state, 0, state.length);
+        int pos = 0;
+        int i = 0;
+        while (pos < length) {
+            int zeroCount = mWork[pos] & 0x7F;
+            if ((mWork[pos++] & 0x80) != 0) {
+                zeroCount = zeroCount << 8 | (mWork[pos++] & 0xFF);
+            }
+            int literalCount = mWork[pos] & 0x7F;
+            if ((mWork[pos++] & 0x80) != 0) {
+                literalCount = literalCount << 8 | (mWork[pos++] & 0xFF);
+            }
+            i += zeroCount;
+            for (int j = 0; j < literalCount; j++) {
+                state[i++] ^= mWork[pos++];
+            }
+        }
+    }
+
+    private static int writeCount(byte[] out, int pos, int count) {
+        if (count < 0x80) {
+            out[pos++] = (byte) count;
+        } else {
+            out[pos++] = (byte) (0x80 | count >> 8);
+            out[pos++] = (byte) count;
+        }
+        return pos;
+    }
+}
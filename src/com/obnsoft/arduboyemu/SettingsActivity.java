@@ -170,7 +170,7 @@ public class SettingsActivity extends PreferenceActivity
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         mFragment.setSummary(key);
         if (PREFS_KEY_REFRESH.equals(key)) {
-            Native.setRefreshTiming(prefs.getBoolean(PREFS_KEY_REFRESH, false));
+            mApp.getArduboyEmulator().setRefreshTiming(prefs.getBoolean(PREFS_KEY_REFRESH, false));
         }
         if (PREFS_KEY_TUNING.equals(key)) {
             Utils.showMessageDialog(this, android.R.drawable.ic_dialog_alert, R.string.prefsTuning,
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream helpers shared by the app and the headless tools, so this class
+ * doesn't depend on Android.
+ */
+public class StreamUtils {
+
+    public static interface CancelCallback {
+        boolean isCencelled(long length);
+    }
+
+    public static final int BUFFER_SIZE = 1024 * 1024; // 1MiB
+    public static final int SMALL_BUFFER_SIZE = 1024 * 8;
+
+    /*-----------------------------------------------------------------------*/
+
+    public static long transferBytes(InputStream in, OutputStream out, CancelCallback callback)
+            throws IOException {
+        return transferBytes(in, out, BUFFER_SIZE, callback);
+    }
+
+    /**
+     * Copy all bytes until the end of the input or the cancellation, and
+     * close both streams.
+     *
+     * @return the number of bytes copied
+     */
+    public static long transferBytes(InputStream in, OutputStream out, int bufferSize,
+            CancelCallback callback) throws IOException {
+        try {
+            byte[]  buffer = new byte[bufferSize];
+            long    length = 0;
+            int     readLength;
+            while (!(callback != null && callback.isCencelled(length))
+                    && (readLength = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, readLength);
+                length += readLength;
+            }
+            return length;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+}
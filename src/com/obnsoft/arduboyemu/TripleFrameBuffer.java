@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer of frames between one producer and one consumer.
+ * The producer never waits for the consumer, and the consumer always gets
+ * the newest published frame; intermediate frames are overwritten.
+ */
+public class TripleFrameBuffer {
+
+    private static final int INDEX_MASK = 3;
+    private static final int FLAG_FRESH = 4;
+
+    public static class Frame {
+
+        public ByteBuffer   packed = ByteBuffer.allocate(PackedScreen.SIZE);
+        public int          ledRgb;
+        public boolean      isRxOn;
+        public boolean      isTxOn;
+        public boolean      isCharging;
+
+        private void copyPacked(ByteBuffer src) {
+            src.position(0);
+            packed.position(0);
+            packed.put(src);
+            src.position(0);
+            packed.position(0);
+        }
+    }
+
+    private Frame[]         mFrames = new Frame[] { new Frame(), new Frame(), new Frame() };
+    private int             mBackIndex = 0;     // owned by the producer
+    private int             mFrontIndex = 1;    // owned by the consumer
+    private AtomicInteger   mMiddle = new AtomicInteger(2);
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Fill the frame which will be published next. Called by the producer.
+     */
+    public Frame getBackFrame(ByteBuffer packed) {
+        Frame frame = mFrames[mBackIndex];
+        if (packed != null) {
+            frame.copyPacked(packed);
+        }
+        return frame;
+    }
+
+    /**
+     * Called by the producer.
+     */
+    public void publish() {
+        mBackIndex = mMiddle.getAndSet(mBackIndex | FLAG_FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * @return true if a frame is published but hasn't been acquired yet
+     */
+    public boolean hasFreshFrame() {
+        return (mMiddle.get() & FLAG_FRESH) != 0;
+    }
+
+    /**
+     * Called by the consumer.
+     *
+     * @return the newest frame, or null if nothing is published since the last call
+     */
+    public Frame acquireLatest() {
+        if (!hasFreshFrame()) {
+            return null;
+        }
+        mFrontIndex = mMiddle.getAndSet(mFrontIndex) & INDEX_MASK;
+        return mFrames[mFrontIndex];
+    }
+
+    /**
+     * Called by the consumer.
+     */
+    public Frame getFrontFrame() {
+        return mFrames[mFrontIndex];
+    }
+}
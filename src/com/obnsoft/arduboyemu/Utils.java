@@ -21,10 +21,8 @@ package com.obnsoft.arduboyemu;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -52,10 +50,6 @@ import android.widget.Toast;
 
 public class Utils {
 
-    public static interface CancelCallback {
-        boolean isCencelled(long length);
-    }
-
     public static interface ResultHandler {
         void handleResult(Result result, File file);
     }
@@ -66,8 +60,6 @@ public class Utils {
     private static final String SCHEME_CONTENT  = "content";
     private static final String SCHEME_ARDUBOY  = "arduboy";
 
-    private static final int BUFFER_SIZE = 1024 * 1024; // 1MiB
-
     public static void showCustomDialog(
             Context context, int iconId, int titleId, View view, final OnClickListener listener) {
         final AlertDialog dlg = new AlertDialog.Builder(context)
@@ -165,21 +157,6 @@ public class Utils {
         return (index >= 0) ? fileName.substring(0, index) : fileName;
     }
 
-    public static long transferBytes(InputStream in, OutputStream out, CancelCallback callback)
-            throws IOException {
-        byte[]  buffer = new byte[BUFFER_SIZE];
-        long    length = 0;
-        int     readLength;
-        while (!(callback != null && callback.isCencelled(length))
-                && (readLength = in.read(buffer)) >= 0) {
-            out.write(buffer, 0, readLength);
-            length += readLength;
-        }
-        out.close(); 
-        in.close();
-        return length;
-    }
-
     public static void downloadFile(final Context context, Uri uri, final ResultHandler handler) {
         final Uri actualUri;
         final boolean isNet;
@@ -215,7 +192,8 @@ public class Utils {
                     } else {
                         in = context.getContentResolver().openInputStream(actualUri);
                     }
-                    transferBytes(in, new FileOutputStream(file), new CancelCallback() {
+                    StreamUtils.transferBytes(in, new FileOutputStream(file),
+                            new StreamUtils.CancelCallback() {
                         @Override
                         public boolean isCencelled(long length) {
                             return mIsCancelled;
@@ -248,7 +226,9 @@ public class Utils {
 
     public static void cleanCacheFiles(Context context) {
         for (File file : context.getCacheDir().listFiles()) {
-            file.delete();
+            if (file.isFile()) { // keep the directories such as decoded flash images
+                file.delete();
+            }
         }
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+/**
+ * Aligns frames to the display's vsync when the refresh rate is an integral
+ * multiple of the emulation speed, otherwise falls back to the timer.
+ * Must be instantiated on the main thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class VsyncFrameScheduler extends FrameScheduler implements Choreographer.FrameCallback {
+
+    private static final float REFRESH_RATE_TOLERANCE = 0.5f;
+
+    private Choreographer   mChoreographer;
+    private float           mRefreshRate;
+    private volatile boolean mIsActive;
+    private Object          mLock = new Object();
+    private long            mVsyncCount;    // guarded by mLock
+    private long            mTargetCount;
+    private int             mCurrentInterval;
+
+    public VsyncFrameScheduler(float refreshRate) {
+        mChoreographer = Choreographer.getInstance();
+        mRefreshRate = refreshRate;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    public void start() {
+        super.start();
+        mCurrentInterval = 0;
+        mIsActive = true;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void stop() {
+        mIsActive = false;
+        mChoreographer.removeFrameCallback(this);
+        super.stop();
+    }
+
+    @Override
+    public boolean awaitNextFrame() {
+        int interval = getVsyncInterval(getFps());
+        if (interval == 0) {
+            mCurrentInterval = 0;
+            return super.awaitNextFrame();
+        }
+
+        synchronized (mLock) {
+            if (interval != mCurrentInterval) {
+                mCurrentInterval = interval;
+                mTargetCount = mVsyncCount;
+            }
+            mTargetCount += interval;
+            if (mVsyncCount >= mTargetCount) {
+                long lagFrames = (mVsyncCount - mTargetCount) / interval;
+                switch (getLatePolicy(lagFrames)) {
+                case POLICY_DROP:
+                    return false;
+                case POLICY_CATCH_UP:
+                    return true;
+                default:
+                    mTargetCount = mVsyncCount;
+                    return true;
+                }
+            }
+
+            /*  Vsync signals stop while the screen is off, so don't wait forever  */
+            long timeout = interval * MAX_LAG_FRAMES * ONE_SECOND_NANOS
+                    / (long) mRefreshRate / ONE_MILLI_NANOS;
+            while (mIsActive && mVsyncCount < mTargetCount) {
+                long count = mVsyncCount;
+                try {
+                    mLock.wait(timeout);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+                if (mVsyncCount == count) {
+                    mTargetCount = mVsyncCount;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (mLock) {
+            mVsyncCount++;
+            mLock.notifyAll();
+        }
+        if (mIsActive) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int getVsyncInterval(int fps) {
+        if (fps <= 0 || fps > mRefreshRate + REFRESH_RATE_TOLERANCE) {
+            return 0;
+        }
+        int interval = Math.round(mRefreshRate / fps);
+        return (Math.abs(mRefreshRate - fps * interval) <= REFRESH_RATE_TOLERANCE) ? interval : 0;
+    }
+}